@@ -1,19 +1,187 @@
 package endpoints;
 
 import com.databasesandlife.util.jdbc.DbTransaction;
+import com.offerready.xslt.BufferedHttpResponseDocumentGenerationDestination;
+import lombok.SneakyThrows;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.LoggerFactory;
 import org.flywaydb.core.Flyway;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 public abstract class AbstractEndpointsServlet extends HttpServlet {
+    
+    /** 
+     * Executes requests, so that container threads are not blocked while e.g. upstream HTTP requests are waited for.
+     * Requests beyond the queue's capacity are rejected, rather than waiting until they have surely timed out.
+     */
+    protected static final @Nonnull ThreadPoolExecutor requestProcessingThreads = newRequestProcessingThreads();
+    
+    /** Request attribute containing the reason a response is aborted, see {@link AsyncResponse#abort} */
+    protected static final @Nonnull String abortReasonAttribute = AbstractEndpointsServlet.class.getName() + ".abortReason";
+    
+    protected static @Nonnull ThreadPoolExecutor newRequestProcessingThreads() {
+        var params = DeploymentParameters.get();
+        var result = new ThreadPoolExecutor(params.maxConcurrentRequests, params.maxConcurrentRequests, 0, MILLISECONDS,
+            new ArrayBlockingQueue<>(params.maxQueuedRequests), VirtualThreads.newThreadFactory("endpoints-request"));
+        Metrics.registerGauge("endpoints_requests_queued", "Endpoint requests waiting for a thread to process them",
+            () -> result.getQueue().size());
+        return result;
+    }
+    
+    public interface ResponseWriter {
+        void write(@Nonnull HttpServletResponse resp) throws IOException;
+    }
+
+    /** 
+     * Response of a request being processed asynchronously. 
+     * The response is written once: either by the request processing, or with an error if the request timed out.
+     *    <p>
+     * If the response is being streamed, anything written afterwards is an error. If nothing has been sent to the client
+     * yet, the error is written instead. Otherwise the connection is aborted, so the client does not see the
+     * incomplete response as a successful one.
+     */
+    public static class AsyncResponse implements AsyncListener, EndpointExecutor.Responder {
+        protected final @Nonnull AsyncContext async;
+        protected boolean finished = false, completed = false, streaming = false;
+        protected volatile boolean timedOut = false;
+
+        protected AsyncResponse(@Nonnull AsyncContext async) {
+            this.async = async;
+            async.addListener(this);
+        }
+        
+        protected synchronized void complete() {
+            finished = true;
+            if (completed) return;
+            completed = true;
+            async.complete();
+        }
+
+        /** Closes the connection without completing the response, by dispatching to {@link #service}, which throws */
+        protected synchronized void abort(@Nonnull String reason) {
+            finished = true;
+            if (completed) return;
+            completed = true;
+            LoggerFactory.getLogger(getClass()).error("Aborting response: " + reason);
+            async.getRequest().setAttribute(abortReasonAttribute, reason);
+            async.dispatch();
+        }
+
+        /** Writes the response and completes the request, unless a response has already been written */
+        public synchronized void write(@Nonnull ResponseWriter writer) throws IOException {
+            if (completed) return;
+            if (streaming) {
+                var resp = (HttpServletResponse) async.getResponse();
+                if (resp.isCommitted()) { abort("Error after the streamed response was partially sent"); return; }
+                var origin = resp.getHeader("Access-Control-Allow-Origin");
+                resp.reset(); // Status and headers of the streamed response
+                if (origin != null) resp.setHeader("Access-Control-Allow-Origin", origin);
+                streaming = false;
+                finished = false;
+            }
+            if (finished) return;
+            finished = true;
+            try { writer.write((HttpServletResponse) async.getResponse()); }
+            finally { complete(); }
+        }
+
+        @SneakyThrows(IOException.class)
+        @Override public void respond(@Nonnull BufferedHttpResponseDocumentGenerationDestination responseContent) {
+            if (responseContent instanceof StreamingHttpResponseDestination) complete();
+            else write(responseContent::deliver);
+        }
+
+        /** After this is called, the response is being written by the request, so is aborted on timeout */
+        @Override public synchronized @CheckForNull HttpServletResponse startStreaming() {
+            if (finished) return null;
+            finished = streaming = true;
+            return (HttpServletResponse) async.getResponse();
+        }
+
+        @Override public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        /** The request processing continues until it next checks {@link #isTimedOut()}, then stops */
+        @Override public void onTimeout(@Nonnull AsyncEvent event) throws IOException {
+            LoggerFactory.getLogger(getClass()).error("Request timed out after " + async.getTimeout() + " ms");
+            timedOut = true;
+            synchronized (this) {
+                // The response is still being written by the request, so cannot be replaced by the error
+                if (streaming) { abort("Request timed out while streaming the response"); return; }
+            }
+            write(resp -> resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Request timed out"));
+        }
+
+        @Override public void onError(@Nonnull AsyncEvent event) {
+            synchronized (this) { finished = completed = true; }
+        }
+
+        @Override public void onComplete(@Nonnull AsyncEvent event) { }
+        @Override public void onStartAsync(@Nonnull AsyncEvent event) { }
+    }
+
+    public interface AsyncRequestProcessor {
+        void process(@Nonnull AsyncResponse response) throws IOException;
+    }
+
+    /**
+     * Releases the container thread, and processes the request on {@link #requestProcessingThreads}.
+     * The processor must call {@link AsyncResponse#write(ResponseWriter)} or {@link AsyncResponse#respond} once.
+     * The processor must not access "req", as the container may reuse it after the request has timed out:
+     * anything it needs must be read from "req" before this method is called, see {@link ServletRequest}.
+     */
+    protected void processAsync(@Nonnull HttpServletRequest req, @Nonnull AsyncRequestProcessor processor) 
+    throws IOException {
+        var async = req.startAsync();
+        async.setTimeout(DeploymentParameters.get().asyncRequestTimeout.toMillis());
+        var response = new AsyncResponse(async);
+        Runnable processRequest = () -> {
+            try {
+                processor.process(response);
+            }
+            catch (Exception e) {
+                LoggerFactory.getLogger(getClass()).error("An internal error occurred", e);
+                try { response.write(resp -> resp.sendError(500, "An internal error occurred")); }
+                catch (IOException ignored) { }
+            }
+            finally {
+                response.complete(); // In case the processor did not respond
+            }
+        };
+        try { requestProcessingThreads.execute(processRequest); }
+        catch (RejectedExecutionException e) {
+            LoggerFactory.getLogger(getClass()).error("Request rejected: " + requestProcessingThreads.getQueue().size() 
+                + " requests are already waiting, see ENDPOINTS_MAX_QUEUED_REQUESTS");
+            response.write(resp -> resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many requests"));
+        }
+    }
+
+    @Override
+    protected void service(@Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp) 
+    throws ServletException, IOException {
+        // The container aborts the connection if an exception is thrown after the response is committed
+        var abortReason = (String) req.getAttribute(abortReasonAttribute);
+        if (req.getDispatcherType() == DispatcherType.ASYNC && abortReason != null) throw new ServletException(abortReason);
+        super.service(req, resp);
+    }
 
     @Override
     protected void doOptions(@Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp) throws IOException {
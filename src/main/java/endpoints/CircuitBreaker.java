@@ -0,0 +1,111 @@
+package endpoints;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.time.Duration;
+
+/**
+ * Stops sending requests to a server which is failing, so that requests fail immediately rather than each waiting
+ * for the failure. See {@link HttpClientPool} which has one per server.
+ *    <p>
+ * Failures (errors and timeouts, including while reading the response body, and 5xx responses) are counted over a sliding time window.
+ * If they exceed a percentage of requests, the breaker is "open" for a duration, during which requests are rejected
+ * with {@link CircuitBreakerOpenException}. After that, it is "half open": one request is sent, and if it succeeds,
+ * the breaker is "closed" again, otherwise it is open again.
+ *    <p>
+ * The exception is an {@link IOException}, so an HTTP request with "ignore-if-error" treats it like any other
+ * failure to connect, i.e. fails immediately.
+ */
+public class CircuitBreaker {
+
+    public enum State { closed, open, halfOpen }
+
+    public static class CircuitBreakerOpenException extends IOException {
+        public CircuitBreakerOpenException(@Nonnull String host) {
+            super("Requests to '" + host + "' are not being sent, as too many have recently failed");
+        }
+    }
+
+    protected static final int bucketCount = 10;
+
+    protected final @Nonnull String host;
+    protected final int failurePercent, minRequests;
+    protected final long bucketMillis, openMillis;
+    protected final long[] bucketStartMillis = new long[bucketCount];
+    protected final int[] requestCounts = new int[bucketCount], failureCounts = new int[bucketCount];
+    protected @Nonnull State state = State.closed;
+    protected long openedAtMillis = 0;
+    protected boolean probeInFlight = false;
+
+    /** @param failurePercent zero means the breaker is never opened */
+    public CircuitBreaker(
+        @Nonnull String host, int failurePercent, int minRequests, @Nonnull Duration window, @Nonnull Duration openDuration
+    ) {
+        this.host = host;
+        this.failurePercent = failurePercent;
+        this.minRequests = minRequests;
+        this.bucketMillis = Math.max(1, window.toMillis() / bucketCount);
+        this.openMillis = openDuration.toMillis();
+    }
+
+    public synchronized @Nonnull State getState() {
+        return state;
+    }
+
+    /** Call before sending a request, then call {@link #recordResult(boolean)} or {@link #recordNotSent()} */
+    public synchronized void assertRequestAllowed() throws CircuitBreakerOpenException {
+        if (state == State.open && System.currentTimeMillis() - openedAtMillis >= openMillis) {
+            state = State.halfOpen;
+            probeInFlight = false;
+        }
+        if (state == State.open) throw new CircuitBreakerOpenException(host);
+        if (state == State.halfOpen) {
+            if (probeInFlight) throw new CircuitBreakerOpenException(host);
+            probeInFlight = true;
+        }
+    }
+
+    /** Call if a request, which was allowed, was not sent after all */
+    public synchronized void recordNotSent() {
+        if (state == State.halfOpen) probeInFlight = false;
+    }
+
+    public synchronized void recordResult(boolean success) {
+        var now = System.currentTimeMillis();
+
+        if (state == State.halfOpen) {
+            if (success) { state = State.closed; clear(); }
+            else { state = State.open; openedAtMillis = now; }
+            probeInFlight = false;
+            return;
+        }
+        if (state == State.open) return; // Request sent before the breaker opened
+
+        var bucketStart = now - now % bucketMillis;
+        var bucket = (int) ((now / bucketMillis) % bucketCount);
+        if (bucketStartMillis[bucket] != bucketStart) {
+            bucketStartMillis[bucket] = bucketStart;
+            requestCounts[bucket] = 0;
+            failureCounts[bucket] = 0;
+        }
+        requestCounts[bucket]++;
+        if ( ! success) failureCounts[bucket]++;
+
+        if ( ! success && failurePercent > 0) {
+            int requests = 0, failures = 0;
+            for (int i = 0; i < bucketCount; i++) {
+                if (now - bucketStartMillis[i] >= bucketMillis * bucketCount) continue; // outside window
+                requests += requestCounts[i];
+                failures += failureCounts[i];
+            }
+            if (requests >= minRequests && failures * 100 >= failurePercent * requests) {
+                state = State.open;
+                openedAtMillis = now;
+            }
+        }
+    }
+
+    protected void clear() {
+        for (int i = 0; i < bucketCount; i++) { requestCounts[i] = 0; failureCounts[i] = 0; }
+    }
+}
@@ -0,0 +1,101 @@
+package endpoints;
+
+import com.databasesandlife.util.jdbc.DbTransaction;
+import com.databasesandlife.util.jdbc.DbTransaction.CannotConnectToDatabaseException;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+
+import javax.annotation.Nonnull;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A bounded pool of JDBC connections to one database, from which {@link DbTransaction} objects are created.
+ *    <p>
+ * Publishes the number of active and idle connections, and the time spent waiting for a connection, to {@link Metrics}.
+ */
+public class DatabaseConnectionPool implements AutoCloseable {
+
+    /** Pools for databases other than the main Endpoints database, shared across all applications */
+    protected static final @Nonnull Map<String, DatabaseConnectionPool> sharedPoolForJdbcUrl = new HashMap<>();
+
+    protected final @Nonnull String labels;
+    protected final @Nonnull HikariDataSource dataSource;
+    protected final @Nonnull Metrics.Counter waitNanos, timeouts;
+
+    public DatabaseConnectionPool(
+        @Nonnull String name, @Nonnull String jdbcUrl,
+        int minIdleConnections, int maxConnections, @Nonnull Duration idleTimeout
+    ) {
+        labels = "{pool=\"" + name.replace("\"", "'") + "\"}";
+        waitNanos = new Metrics.Counter();
+        timeouts = Metrics.registerCounter("endpoints_database_pool_timeouts_total" + labels,
+            "Number of times no connection became available within the timeout");
+        Metrics.registerCounter("endpoints_database_pool_wait_seconds_total" + labels,
+            "Total time spent waiting for a connection from the pool", () -> waitNanos.get() / 1e9);
+
+        var config = new HikariConfig();
+        config.setPoolName(name);
+        config.setJdbcUrl(jdbcUrl);
+        config.setMinimumIdle(minIdleConnections);
+        config.setMaximumPoolSize(maxConnections);
+        config.setIdleTimeout(idleTimeout.toMillis());
+        config.setInitializationFailTimeout(-1); // Database might not be available yet at startup
+        config.setMetricsTrackerFactory((poolName, stats) -> {
+            Metrics.registerGauge("endpoints_database_pool_active_connections" + labels,
+                "Connections currently in use", stats::getActiveConnections);
+            Metrics.registerGauge("endpoints_database_pool_idle_connections" + labels,
+                "Connections currently idle in the pool", stats::getIdleConnections);
+            Metrics.registerGauge("endpoints_database_pool_pending_threads" + labels,
+                "Threads currently waiting for a connection", stats::getPendingThreads);
+            return new IMetricsTracker() {
+                @Override public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) { waitNanos.add(elapsedAcquiredNanos); }
+                @Override public void recordConnectionTimeout() { timeouts.increment(); }
+            };
+        });
+        dataSource = new HikariDataSource(config);
+    }
+
+    /** Removes user and password, and all other parameters, from the JDBC URL so it can be used in logs and metrics */
+    protected static @Nonnull String getDisplayName(@Nonnull String jdbcUrl) {
+        return jdbcUrl.replaceAll("\\?.*$", "").replaceAll("//[^/@]*@", "//");
+    }
+
+    /**
+     * Returns the pool for this JDBC URL, creating it if necessary.
+     * If the pool already exists with a smaller maximum size, its maximum size is increased.
+     */
+    public static synchronized @Nonnull DatabaseConnectionPool getSharedPool(@Nonnull String jdbcUrl, int maxConnections) {
+        var result = sharedPoolForJdbcUrl.get(jdbcUrl);
+        if (result == null) {
+            // Display names of different URLs can be the same, e.g. if only the user differs, but metrics labels must differ
+            var name = getDisplayName(jdbcUrl) + " #" + (sharedPoolForJdbcUrl.size() + 1);
+            result = new DatabaseConnectionPool(name, jdbcUrl, 0, maxConnections,
+                DeploymentParameters.get().databasePoolIdleTimeout);
+            sharedPoolForJdbcUrl.put(jdbcUrl, result);
+        }
+        else if (result.dataSource.getMaximumPoolSize() < maxConnections) {
+            result.dataSource.setMaximumPoolSize(maxConnections);
+        }
+        return result;
+    }
+
+    /** The connection is returned to the pool when the transaction is closed */
+    public @Nonnull DbTransaction newDbTransaction() throws CannotConnectToDatabaseException {
+        return new DbTransaction(dataSource);
+    }
+
+    /** For direct JDBC access e.g. to stream large result sets. Close the connection to return it to the pool */
+    public @Nonnull Connection getConnection() throws SQLException {
+        return dataSource.getConnection();
+    }
+
+    @Override public void close() {
+        dataSource.close();
+        Metrics.unregister("endpoints_database_pool_", labels);
+    }
+}
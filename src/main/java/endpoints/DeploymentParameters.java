@@ -14,6 +14,7 @@ import javax.annotation.Nonnull;
 import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.time.Duration;
 import java.time.ZoneId;
 import java.util.Optional;
 
@@ -34,12 +35,21 @@ public class DeploymentParameters {
     /** Has trailing slash */ public final @Nonnull URL baseUrl;
     public final @Nonnull String jdbcUrl;
     public final @Nonnull File publishedApplicationsDirectory;
-    public final boolean checkHash, displayExpectedHash, xsltDebugLog;
+    public final boolean checkHash, displayExpectedHash, xsltDebugLog, lockFreeExecution, virtualThreads;
     public final @CheckForNull String servicePortalEnvironmentDisplayName;
+    /** Null means /metrics is not published */
+    public final @CheckForNull String metricsSecret;
     public final @CheckForNull ZoneId singleApplicationModeTimezoneId;
     public final @CheckForNull Integer requestLogExpiryDays;
+    public final int databasePoolMinIdleConnections, databasePoolMaxConnections, xmlFromDatabasePoolMaxConnections;
+    public final @Nonnull Duration databasePoolIdleTimeout, asyncRequestTimeout, httpConnectTimeout, httpReadTimeout, httpKeepAlive;
+    public final @Nonnull Duration httpCircuitBreakerWindow, httpCircuitBreakerOpenDuration;
+    public final long responseCacheMaxBytes, httpCacheMaxBytes, httpHtmlMaxBytes;
+    public final int requestThreadCount, maxConcurrentRequests, maxQueuedRequests, maxConcurrentIoTasks, httpMaxConnectionsPerHost;
+    public final int httpMaxWaitingPerHost, httpCircuitBreakerFailurePercent, httpCircuitBreakerMinRequests;
     
     protected @CheckForNull ApplicationFactory applications = null;
+    protected @CheckForNull DatabaseConnectionPool databaseConnectionPool = null;
     
     public static synchronized DeploymentParameters get() {
         if (sharedInstance == null) sharedInstance = new DeploymentParameters();
@@ -78,10 +88,69 @@ public class DeploymentParameters {
             Boolean.parseBoolean(getOptionalParameter("ENDPOINTS_XSLT_DEBUG_LOG").orElse("false"));
         servicePortalEnvironmentDisplayName =
             getOptionalParameter("ENDPOINTS_SERVICE_PORTAL_ENVIRONMENT_DISPLAY_NAME").orElse(null);
+        metricsSecret =
+            getOptionalParameter("ENDPOINTS_METRICS_SECRET").orElse(null);
         singleApplicationModeTimezoneId = 
             getOptionalParameter("ENDPOINTS_SINGLE_APPLICATION_MODE_TIMEZONE_ID").map(s -> ZoneId.of(s)).orElse(null);
         requestLogExpiryDays = 
             getOptionalParameter("ENDPOINTS_REQUEST_LOG_EXPIRY_DAYS").map(Integer::parseInt).orElse(null);
+        lockFreeExecution =
+            Boolean.parseBoolean(getOptionalParameter("ENDPOINTS_LOCK_FREE_EXECUTION").orElse("false"));
+        databasePoolMinIdleConnections =
+            getOptionalParameter("ENDPOINTS_DATABASE_POOL_MIN_IDLE_CONNECTIONS").map(Integer::parseInt).orElse(2);
+        databasePoolMaxConnections =
+            getOptionalParameter("ENDPOINTS_DATABASE_POOL_MAX_CONNECTIONS").map(Integer::parseInt).orElse(20);
+        xmlFromDatabasePoolMaxConnections =
+            getOptionalParameter("ENDPOINTS_XML_FROM_DATABASE_POOL_MAX_CONNECTIONS").map(Integer::parseInt).orElse(10);
+        databasePoolIdleTimeout =
+            getOptionalParameter("ENDPOINTS_DATABASE_POOL_IDLE_TIMEOUT_SECONDS").map(s -> Duration.ofSeconds(Long.parseLong(s)))
+                .orElse(Duration.ofMinutes(10));
+        responseCacheMaxBytes =
+            getOptionalParameter("ENDPOINTS_RESPONSE_CACHE_MAX_BYTES").map(Long::parseLong).orElse(100_000_000L);
+        httpCacheMaxBytes =
+            getOptionalParameter("ENDPOINTS_HTTP_CACHE_MAX_BYTES").map(Long::parseLong).orElse(50_000_000L);
+        httpHtmlMaxBytes =
+            getOptionalParameter("ENDPOINTS_HTTP_HTML_MAX_BYTES").map(Long::parseLong).orElse(10_000_000L);
+        requestThreadCount =
+            getOptionalParameter("ENDPOINTS_REQUEST_THREAD_COUNT").map(Integer::parseInt)
+                .orElse(Runtime.getRuntime().availableProcessors());
+        maxConcurrentRequests =
+            getOptionalParameter("ENDPOINTS_MAX_CONCURRENT_REQUESTS").map(Integer::parseInt).orElse(200);
+        maxQueuedRequests =
+            getOptionalParameter("ENDPOINTS_MAX_QUEUED_REQUESTS").map(Integer::parseInt).orElse(1000);
+        maxConcurrentIoTasks =
+            getOptionalParameter("ENDPOINTS_MAX_CONCURRENT_IO_TASKS").map(Integer::parseInt).orElse(500);
+        asyncRequestTimeout =
+            getOptionalParameter("ENDPOINTS_REQUEST_TIMEOUT_SECONDS").map(s -> Duration.ofSeconds(Long.parseLong(s)))
+                .orElse(Duration.ofMinutes(5));
+        httpConnectTimeout =
+            getOptionalParameter("ENDPOINTS_HTTP_CONNECT_TIMEOUT_SECONDS").map(s -> Duration.ofSeconds(Long.parseLong(s)))
+                .orElse(Duration.ofSeconds(10));
+        httpReadTimeout =
+            getOptionalParameter("ENDPOINTS_HTTP_READ_TIMEOUT_SECONDS").map(s -> Duration.ofSeconds(Long.parseLong(s)))
+                .orElse(Duration.ofMinutes(5));
+        httpKeepAlive =
+            getOptionalParameter("ENDPOINTS_HTTP_KEEP_ALIVE_SECONDS").map(s -> Duration.ofSeconds(Long.parseLong(s)))
+                .orElse(Duration.ofMinutes(1));
+        httpMaxConnectionsPerHost =
+            getOptionalParameter("ENDPOINTS_HTTP_MAX_CONNECTIONS_PER_HOST").map(Integer::parseInt).orElse(50);
+        httpMaxWaitingPerHost =
+            getOptionalParameter("ENDPOINTS_HTTP_MAX_WAITING_PER_HOST").map(Integer::parseInt).orElse(100);
+        httpCircuitBreakerFailurePercent =
+            getOptionalParameter("ENDPOINTS_HTTP_CIRCUIT_BREAKER_FAILURE_PERCENT").map(Integer::parseInt).orElse(50);
+        httpCircuitBreakerMinRequests =
+            getOptionalParameter("ENDPOINTS_HTTP_CIRCUIT_BREAKER_MIN_REQUESTS").map(Integer::parseInt).orElse(20);
+        httpCircuitBreakerWindow =
+            getOptionalParameter("ENDPOINTS_HTTP_CIRCUIT_BREAKER_WINDOW_SECONDS").map(s -> Duration.ofSeconds(Long.parseLong(s)))
+                .orElse(Duration.ofMinutes(1));
+        httpCircuitBreakerOpenDuration =
+            getOptionalParameter("ENDPOINTS_HTTP_CIRCUIT_BREAKER_OPEN_SECONDS").map(s -> Duration.ofSeconds(Long.parseLong(s)))
+                .orElse(Duration.ofSeconds(30));
+        virtualThreads =
+            Boolean.parseBoolean(getOptionalParameter("ENDPOINTS_VIRTUAL_THREADS").orElse("false"));
+        if (virtualThreads && ! VirtualThreads.isSupportedByJvm())
+            LoggerFactory.getLogger(getClass()).warn("ENDPOINTS_VIRTUAL_THREADS is set, but this JVM does not support " +
+                "virtual threads (JDK 21+ required): will use normal threads");
 
         LoggerFactory.getLogger(getClass()).info("Endpoints server application is in " + 
             (isSingleApplicationMode() 
@@ -100,7 +169,14 @@ public class DeploymentParameters {
         return applications;
     }
 
+    protected synchronized @Nonnull DatabaseConnectionPool getDatabaseConnectionPool() {
+        if (databaseConnectionPool == null) 
+            databaseConnectionPool = new DatabaseConnectionPool("main", jdbcUrl, 
+                databasePoolMinIdleConnections, databasePoolMaxConnections, databasePoolIdleTimeout);
+        return databaseConnectionPool;
+    }
+
     public DbTransaction newDbTransaction() throws CannotConnectToDatabaseException {
-        return new DbTransaction(jdbcUrl);
+        return getDatabaseConnectionPool().newDbTransaction();
     }
 }
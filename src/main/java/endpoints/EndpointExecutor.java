@@ -1,7 +1,6 @@
 package endpoints;
 
 import com.databasesandlife.util.DomParser;
-import com.databasesandlife.util.ThreadPool;
 import com.databasesandlife.util.ThreadPool.SynchronizationPoint;
 import com.databasesandlife.util.Timer;
 import com.databasesandlife.util.gwtsafe.ConfigurationException;
@@ -11,6 +10,7 @@ import com.offerready.xslt.WeaklyCachedXsltTransformer.DocumentTemplateInvalidEx
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import endpoints.HttpRequestSpecification.HttpRequestFailedException;
 import endpoints.OnDemandIncrementingNumber.OnDemandIncrementingNumberType;
+import endpoints.TransformationContext.DeadlineExceededException;
 import endpoints.TransformationContext.ParameterNotFoundPolicy;
 import endpoints.config.*;
 import endpoints.config.ApplicationFactory.ApplicationConfig;
@@ -66,13 +66,46 @@ import static endpoints.generated.jooq.Tables.*;
 import static java.util.Arrays.stream;
 import static java.util.stream.Collectors.joining;
 import static java.util.stream.Collectors.toMap;
-import static org.jooq.impl.DSL.max;
 
 public class EndpointExecutor {
 
     @FunctionalInterface
     public interface Responder {
         public void respond(@Nonnull BufferedHttpResponseDocumentGenerationDestination response);
+
+        /**
+         * Called if a response with stream="true" is chosen, before its content is generated.
+         * The response is then written directly to the returned object, 
+         * and {@link #respond} is called with a {@link StreamingHttpResponseDestination} afterwards.
+         * @return null if the response cannot be streamed, in which case it is buffered as normal
+         */
+        public default @CheckForNull HttpServletResponse startStreaming() { return null; }
+
+        /** 
+         * True if the client has already been sent a timeout error.
+         * Execution then stops at the next opportunity, and the request is logged as timed out.
+         */
+        public default boolean isTimedOut() { return false; }
+    }
+    
+    /** Set during {@link #execute} */
+    protected @CheckForNull Responder responder = null;
+    
+    /** Set during {@link #execute}; null if the endpoint has no timeout. The &lt;error&gt; response has no deadline. */
+    protected @CheckForNull Instant deadline = null;
+    
+    /** See ENDPOINTS_LOCK_FREE_EXECUTION */
+    protected boolean lockFreeExecution = DeploymentParameters.get().lockFreeExecution;
+    
+    protected boolean isRequestTimedOut() {
+        return responder != null && responder.isTimedOut();
+    }
+    
+    /** As written to the client by the servlet, when the request times out */
+    protected @Nonnull BufferedHttpResponseDocumentGenerationDestination newTimedOutResponse() {
+        var result = new BufferedHttpResponseDocumentGenerationDestination();
+        result.setStatusCode(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        return result;
     }
 
     public static class EndpointExecutionFailedException extends Exception {
@@ -118,23 +151,69 @@ public class EndpointExecutor {
         appendTextElement(parent, name, null, null, contents);
     }
 
+    protected void acquireApplicationLock(
+        @Nonnull DbTransaction tx, @Nonnull ApplicationName application, @Nonnull PublishEnvironment environment
+    ) {
+        try (var ignored = new Timer("Acquire lock on '" + application.name + "', environment '" + environment.name() + "'")) {
+            tx.jooq().select().from(APPLICATION_PUBLISH)
+                .where(APPLICATION_PUBLISH.APPLICATION_NAME.eq(application))
+                .and(APPLICATION_PUBLISH.ENVIRONMENT.eq(environment))
+                .forUpdate().execute();
+        }
+    }
+
     /**
-     * Note: Assumes application is "locked" i.e. only one instance of this process is running on this application.
+     * Atomically increments the endpoint's counter, creating it if this is the endpoint's first request.
+     * The counter row stays locked until the transaction completes, so if the transaction is rolled back
+     * the value will be allocated again to the next request.
      */
     protected long getNextAutoIncrement(
         @Nonnull DbTransaction tx,
         @Nonnull ApplicationName application, @Nonnull PublishEnvironment environment, @Nonnull NodeName endpoint
     ) {
-        var max = tx.jooq()
-            .select(max(REQUEST_LOG_IDS.INCREMENTAL_ID_PER_ENDPOINT))
-            .from(REQUEST_LOG_IDS)
-            .where(REQUEST_LOG_IDS.APPLICATION.eq(application))
-            .and(REQUEST_LOG_IDS.ENVIRONMENT.eq(environment))
-            .and(REQUEST_LOG_IDS.ENDPOINT.eq(endpoint))
-            .fetchOne().value1();
-
-        if (max == null) return 1;
-        else return max+1;
+        return tx.jooq()
+            .insertInto(INCREMENTAL_ID_PER_ENDPOINT_COUNTER)
+            .set(INCREMENTAL_ID_PER_ENDPOINT_COUNTER.APPLICATION, application)
+            .set(INCREMENTAL_ID_PER_ENDPOINT_COUNTER.ENVIRONMENT, environment)
+            .set(INCREMENTAL_ID_PER_ENDPOINT_COUNTER.ENDPOINT, endpoint)
+            .set(INCREMENTAL_ID_PER_ENDPOINT_COUNTER.LAST_VALUE, 1L)
+            .onDuplicateKeyUpdate()
+            .set(INCREMENTAL_ID_PER_ENDPOINT_COUNTER.LAST_VALUE, INCREMENTAL_ID_PER_ENDPOINT_COUNTER.LAST_VALUE.plus(1))
+            .returning(INCREMENTAL_ID_PER_ENDPOINT_COUNTER.LAST_VALUE)
+            .fetchOne().getLastValue();
+    }
+
+    /**
+     * Used in "lock-free execution" mode.
+     * Allocates the incremental and random IDs in a short transaction of its own, and inserts them into the
+     * request log IDs table immediately. The allocation is atomic so no application lock is required,
+     * and the counter row is only locked for the duration of this short transaction.
+     *   <p>
+     * The row is updated with the rest of the request log at the end of the request.
+     * Therefore this must be called before the request's transaction executes its first statement,
+     * otherwise the row is not visible to the request's transaction.
+     */
+    protected @Nonnull RequestLogIdsRecord reserveRequestLogIds(
+        @Nonnull ApplicationName application, @Nonnull PublishEnvironment environment, @Nonnull NodeName endpoint,
+        @Nonnull RequestId requestId
+    ) {
+        try (var tx = DeploymentParameters.get().newDbTransaction();
+             var ignored = new Timer("Reserve IDs for '" + application.name + "', endpoint '" + endpoint.name + "'")) {
+            // Concurrent upserts of the same counter row wait for each other, rather than failing with serialization errors
+            tx.execute("SET TRANSACTION ISOLATION LEVEL READ COMMITTED");
+
+            var ids = new RequestLogIdsRecord();
+            ids.setRequestId(requestId);
+            ids.setApplication(application);
+            ids.setEnvironment(environment);
+            ids.setEndpoint(endpoint);
+            ids.setIncrementalIdPerEndpoint(getNextAutoIncrement(tx, application, environment, endpoint));
+            ids.setRandomIdPerApplication(RandomRequestId.generate(tx, application, environment));
+            tx.insert(ids);
+            
+            tx.commit();
+            return ids;
+        }
     }
 
     @SneakyThrows
@@ -158,7 +237,7 @@ public class EndpointExecutor {
     protected @Nonnull Runnable transformXmlIntoParameters(
         @Nonnull PublishEnvironment environment, @Nonnull ApplicationName applicationName,
         @Nonnull Application application, @Nonnull ApplicationTransaction tx,
-        @Nonnull ThreadPool threads, @Nonnull Endpoint endpoint, @Nonnull RequestId requestId, 
+        @Nonnull SharedThreadPool threads, @Nonnull Endpoint endpoint, @Nonnull RequestId requestId, 
         @Nonnull Request req, boolean debugAllowed, boolean debugRequested, 
         @Nonnull ParameterTransformationLogger parameterTransformationLogger,
         @Nonnull Map<OnDemandIncrementingNumberType, OnDemandIncrementingNumber> autoInc, 
@@ -205,6 +284,8 @@ public class EndpointExecutor {
         // Schedule execution of e.g. <xml-from-application>
         var context = new TransformationContext(environment, applicationName, application, tx, threads, requestParameters,
             ParameterNotFoundPolicy.emptyString, requestId, req, autoInc);
+        context.deadline = deadline;
+        context.requestTimedOut = this::isRequestTimedOut;
         var dataSourceResults = new ArrayList<DataSourceCommandFetcher>();
         for (var c : parameterTransformation.dataSourceCommands)
             dataSourceResults.add(c.scheduleExecution(context, Set.of()));
@@ -273,7 +354,8 @@ public class EndpointExecutor {
             var result = new Node[nodeList.getLength()];
             for (int i = 0; i < nodeList.getLength(); i++) result[i] = nodeList.item(i);
 
-            LoggerFactory.getLogger(getClass()).debug("POST request JSON converted to XML, output is:\n" + Arrays.stream(result)
+            var log = LoggerFactory.getLogger(getClass());
+            if (log.isDebugEnabled()) log.debug("POST request JSON converted to XML, output is:\n" + Arrays.stream(result)
                 .map(x -> x instanceof Element ? formatXmlPretty((Element) x) : "(not an element)")
                 .collect(joining("\n")));
 
@@ -294,7 +376,7 @@ public class EndpointExecutor {
     protected @Nonnull Runnable getParameters(
         @Nonnull PublishEnvironment environment, @Nonnull ApplicationName applicationName,
         @Nonnull Application application, @Nonnull ApplicationTransaction tx,
-        @Nonnull ThreadPool threads, @Nonnull Endpoint endpoint, @Nonnull RequestId requestId,
+        @Nonnull SharedThreadPool threads, @Nonnull Endpoint endpoint, @Nonnull RequestId requestId,
         @Nonnull Request req, boolean debugAllowed, boolean debugRequested,
         @Nonnull ParameterTransformationLogger parameterTransformationLogger, 
         @Nonnull Map<OnDemandIncrementingNumberType, OnDemandIncrementingNumber> autoInc,
@@ -379,9 +461,15 @@ public class EndpointExecutor {
         protected final boolean success;
         protected final @Nonnull Consumer<BufferedHttpResponseDocumentGenerationDestination> responseConsumer;
         
+        protected @Nonnull BufferedHttpResponseDocumentGenerationDestination newDestination() {
+            var streamTo = (config.isStreaming() && responder != null) ? responder.startStreaming() : null;
+            if (streamTo != null) return new StreamingHttpResponseDestination(streamTo);
+            return new BufferedHttpResponseDocumentGenerationDestination();
+        }
+        
         @SneakyThrows({IOException.class, RequestInvalidException.class, TransformationFailedException.class})
         public void runUnconditionally() {
-            var destination = new BufferedHttpResponseDocumentGenerationDestination();
+            var destination = newDestination();
             int contentStatusCode = success ? HttpServletResponse.SC_OK : HttpServletResponse.SC_BAD_REQUEST;
             var stringParams = context.getStringParametersIncludingIntermediateValues(config.inputIntermediateValues);
 
@@ -392,14 +480,17 @@ public class EndpointExecutor {
                 var r = (StaticResponseConfiguration) config;
                 destination.setStatusCode(contentStatusCode);
                 destination.setContentType(new MimetypesFileTypeMap().getContentType(r.file));
-                try (var o = destination.getOutputStream()) { Files.copy(r.file.toPath(), o); }
                 if (r.downloadFilenamePatternOrNull != null)
                     destination.setContentDispositionToDownload(
                         replacePlainTextParameters(r.downloadFilenamePatternOrNull, stringParams));
+                try (var o = destination.getOutputStream()) { Files.copy(r.file.toPath(), o); }
             }
             else if (config instanceof UrlResponseConfiguration) {
                 var r = (UrlResponseConfiguration) config;
                 destination.setStatusCode(contentStatusCode);
+                if (r.downloadFilenamePatternOrNull != null)
+                    destination.setContentDispositionToDownload(
+                        replacePlainTextParameters(r.downloadFilenamePatternOrNull, stringParams));
                 r.spec.scheduleExecutionAndAssertNoError(context, config.inputIntermediateValues, (@CheckForNull var result) -> {
                     if (result != null) {
                         destination.setContentType(result.getContentType());
@@ -407,9 +498,6 @@ public class EndpointExecutor {
                         catch (IOException e) { throw new RuntimeException(e); }
                     }
                 });
-                if (r.downloadFilenamePatternOrNull != null)
-                    destination.setContentDispositionToDownload(
-                        replacePlainTextParameters(r.downloadFilenamePatternOrNull, stringParams));
             }
             else if (config instanceof RedirectResponseConfiguration) {
                 var url = replacePlainTextParameters(((RedirectResponseConfiguration)config).urlPattern, stringParams);
@@ -420,10 +508,10 @@ public class EndpointExecutor {
             else if (config instanceof TransformationResponseConfiguration) {
                 var r = (TransformationResponseConfiguration) config;
                 destination.setStatusCode(contentStatusCode);
-                r.transformer.scheduleExecution(context, config.inputIntermediateValues, destination);
                 if (r.downloadFilenamePatternOrNull != null)
                     destination.setContentDispositionToDownload(
                         replacePlainTextParameters(r.downloadFilenamePatternOrNull, stringParams));
+                r.transformer.scheduleExecution(context, config.inputIntermediateValues, destination);
             }
             else throw new IllegalStateException("Unexpected config: " + config);
             
@@ -477,6 +565,7 @@ public class EndpointExecutor {
 
             if (config instanceof ForwardToEndpointResponseConfiguration) {
                 var request = new Request() {
+                    @Override public @Nonnull String getHttpMethod() { return context.request.getHttpMethod(); }
                     @Override public @CheckForNull InetAddress getClientIpAddress() { return context.request.getClientIpAddress(); }
                     @Override public @Nonnull Map<String, List<String>> getLowercaseHttpHeadersWithoutCookies() {
                         return context.request.getLowercaseHttpHeadersWithoutCookies(); } 
@@ -505,13 +594,14 @@ public class EndpointExecutor {
         }
     }
 
+    /** @param idsReserved the request log IDs row has already been inserted by {@link #reserveRequestLogIds} */
     protected void insertRequestLog(
         @Nonnull DbTransaction tx,
         @Nonnull ApplicationName applicationName, @Nonnull PublishEnvironment environment, @Nonnull NodeName endpointName,
         @Nonnull Instant now, @Nonnull RequestId requestId, 
         @Nonnull Request req, @Nonnull ParameterTransformationLogger parameterTransformationLogger, 
         @Nonnull Map<OnDemandIncrementingNumberType, OnDemandIncrementingNumber> autoInc, 
-        @Nonnull BufferedHttpResponseDocumentGenerationDestination response,
+        @Nonnull BufferedHttpResponseDocumentGenerationDestination response, boolean idsReserved,
         @Nonnull Consumer<RequestLogIdsRecord> alterRequestLogIds, @Nonnull Consumer<RequestLogRecord> alterRequestLog
     ) {
         var ids = new RequestLogIdsRecord();
@@ -523,7 +613,12 @@ public class EndpointExecutor {
         ids.setOnDemandYearIncrementingNumber(autoInc.get(year).getValueOrNull());
         ids.setOnDemandMonthIncrementingNumber(autoInc.get(month).getValueOrNull());
         alterRequestLogIds.accept(ids);
-        tx.insert(ids);
+        if (idsReserved) {
+            var updatedCount = tx.jooq().executeUpdate(ids);
+            if (updatedCount != 1) throw new IllegalStateException("Reserved request log IDs row for request '" 
+                + requestId.id + "' not found (" + updatedCount + " rows updated)");
+        }
+        else tx.insert(ids);
         
         var r = new RequestLogRecord();
         r.setRequestId(requestId);
@@ -605,7 +700,7 @@ public class EndpointExecutor {
     protected void attemptSuccess(
         @Nonnull PublishEnvironment environment, @Nonnull ApplicationName applicationName,
         @Nonnull Application application, @Nonnull ApplicationConfig appConfig, @Nonnull Endpoint endpoint,
-        @Nonnull ApplicationTransaction tx, @Nonnull ThreadPool threads,
+        @Nonnull ApplicationTransaction tx, @Nonnull SharedThreadPool threads,
         boolean debugRequested, @Nonnull ParameterTransformationLogger parameterTransformationLogger,
         @Nonnull Map<OnDemandIncrementingNumberType, OnDemandIncrementingNumber> autoInc, long autoIncrement,
         @Nonnull RandomRequestId random,
@@ -619,11 +714,25 @@ public class EndpointExecutor {
                 try {
                     if (hashToCheck != null) assertHashCorrect(application, environment, endpoint, parameters, hashToCheck);
                     
+                    // Only GET and HEAD, as other methods are requests to do something, not just to fetch something
+                    var cacheDuration = endpoint.cacheDuration;
+                    var cacheable = cacheDuration != null && ! debugRequested
+                        && List.of("GET", "HEAD").contains(req.getHttpMethod());
+                    var cacheKey = ! cacheable ? null 
+                        : ResponseCache.newKey(applicationName, environment, endpoint, parameters);
+                    var cachedResponse = cacheKey == null ? null : ResponseCache.get(cacheKey);
+                    if (cachedResponse != null) { responseConsumer.accept(cachedResponse); return; }
+                    
                     try (var ignored3 = new Timer("Execute <task>s and generate response")) {
                         var context = new TransformationContext(environment, applicationName, application, tx, threads, parameters,
                             ParameterNotFoundPolicy.error, requestId, req, autoInc);
+                        context.deadline = deadline;
+                        context.requestTimedOut = this::isRequestTimedOut;
                         scheduleTasksAndSuccess(environment, applicationName, appConfig,
-                            context, endpoint, autoInc, autoIncrement, random, responseConsumer);
+                            context, endpoint, autoInc, autoIncrement, random, cacheKey == null ? responseConsumer : response -> {
+                                ResponseCache.put(cacheKey, response, cacheDuration);
+                                responseConsumer.accept(response);
+                            });
                     }
                 }
                 catch (RequestInvalidException e) { throw new RuntimeException(e); }
@@ -639,33 +748,40 @@ public class EndpointExecutor {
         @Nonnull Application application, @Nonnull Endpoint endpoint, boolean debugRequested,
         @CheckForNull String hashToCheck, @Nonnull Request req, @Nonnull Responder responder
     ) throws EndpointExecutionFailedException {
-        try (var ignored = new Timer(getClass().getSimpleName())) {
+        this.responder = responder;
+        
+        try (var ignored = new Timer(getClass().getSimpleName());
+             var ignoredPermit = ExecutionLimits.get().requests.acquire()) {
             var now = Instant.now();
             var requestId = RequestId.newRandom();
+            deadline = endpoint.timeout == null ? null : now.plus(endpoint.timeout);
             
             var parameterTransformationLogger = new ParameterTransformationLogger();
+            RequestLogIdsRecord reservedIds = null;
             
             try (var tx = new ApplicationTransaction(application);
                  var ignored2 = new Timer("<success> for application='"+applicationName.name+"', endpoint='"+endpoint.name.name+"'")) {
                 
-                var threads = new ThreadPool();
-                threads.setThreadNamePrefix(getClass().getName() + " <success>");
+                var threads = new SharedThreadPool();
+                
+                // Before the first statement of "tx", so that the reserved row is visible to it
+                if (lockFreeExecution) reservedIds = reserveRequestLogIds(applicationName, environment, endpoint.name, requestId);
                 
                 var appConfig = DeploymentParameters.get().getApplications(tx.db).fetchApplicationConfig(tx.db, applicationName);
                 
                 if (appConfig.locked) throw new RequestInvalidException("Application is locked");
 
-                try (var ignored3 = new Timer("Acquire lock on '" + applicationName.name 
-                        + "', environment '" + environment.name() + "'")) {
-                    tx.db.jooq().select().from(APPLICATION_PUBLISH)
-                        .where(APPLICATION_PUBLISH.APPLICATION_NAME.eq(applicationName))
-                        .and(APPLICATION_PUBLISH.ENVIRONMENT.eq(environment))
-                        .forUpdate().execute();
+                final long autoIncrement;
+                final RandomRequestId random;
+                if (reservedIds != null) {
+                    autoIncrement = reservedIds.getIncrementalIdPerEndpoint();
+                    random = reservedIds.getRandomIdPerApplication();
+                } else {
+                    acquireApplicationLock(tx.db, applicationName, environment);
+                    autoIncrement = getNextAutoIncrement(tx.db, applicationName, environment, endpoint.name);
+                    random = RandomRequestId.generate(tx.db, applicationName, environment);
                 }
-
-                var autoIncrement = getNextAutoIncrement(tx.db, applicationName, environment, endpoint.name);
-                var autoInc = newLazyNumbers(applicationName, environment, now);
-                var random = RandomRequestId.generate(tx.db, applicationName, environment);
+                var autoInc = newLazyNumbers(applicationName, environment, now, lockFreeExecution);
 
                 var successResponse = new Consumer<BufferedHttpResponseDocumentGenerationDestination>() {
                     public BufferedHttpResponseDocumentGenerationDestination destination;
@@ -684,11 +800,15 @@ public class EndpointExecutor {
                     unwrapException(e, HttpRequestFailedException.class);
                     unwrapException(e, TaskExecutionFailedException.class);
                     unwrapException(e, ParameterTransformationHadErrorException.class);
+                    unwrapException(e, DeadlineExceededException.class);
                     throw e;
                 }
+                
+                // The client has already been sent an error, so don't log success
+                if (isRequestTimedOut()) throw new DeadlineExceededException("Request timed out");
 
                 insertRequestLog(tx.db, applicationName, environment, endpoint.name, now, requestId, req,
-                    parameterTransformationLogger, autoInc, successResponse.destination, r -> {
+                    parameterTransformationLogger, autoInc, successResponse.destination, reservedIds != null, r -> {
                         r.setIncrementalIdPerEndpoint(autoIncrement);
                         r.setRandomIdPerApplication(random);
                     }, r -> {});
@@ -713,23 +833,33 @@ public class EndpointExecutor {
                         e instanceof ParameterTransformationHadErrorException
                             ? ((ParameterTransformationHadErrorException) e).error : "");
 
-                    var threads = new ThreadPool();
-                    threads.setThreadNamePrefix(getClass().getName() + " <error>");
-                    var autoInc = newLazyNumbers(applicationName, environment, now);
-                    var context = new TransformationContext(environment, applicationName,
-                        application, tx, threads, errorExpansionValues,
-                        ParameterNotFoundPolicy.error, requestId, req, autoInc);
-                    threads.addTask(new Response(context, endpoint.error, false, errorResponse));
-                    
-                    try { threads.execute(); }
-                    catch (RuntimeException e2) {
-                        unwrapException(e2, RequestInvalidException.class);
-                        unwrapException(e2, TransformationFailedException.class);
-                        throw e2;
+                    var autoInc = newLazyNumbers(applicationName, environment, now, lockFreeExecution);
+                    if (isRequestTimedOut()) {
+                        // The client has already been sent an error, so the <error> response is not generated
+                        errorResponse.accept(newTimedOutResponse());
+                    }
+                    else {
+                        var threads = new SharedThreadPool();
+                        var context = new TransformationContext(environment, applicationName,
+                            application, tx, threads, errorExpansionValues,
+                            ParameterNotFoundPolicy.error, requestId, req, autoInc);
+                        threads.addTask(new Response(context, endpoint.error, false, errorResponse));
+
+                        try { threads.execute(); }
+                        catch (RuntimeException e2) {
+                            unwrapException(e2, RequestInvalidException.class);
+                            unwrapException(e2, TransformationFailedException.class);
+                            throw e2;
+                        }
                     }
 
                     insertRequestLog(tx.db, applicationName, environment, endpoint.name, now, requestId, req,
-                        parameterTransformationLogger, autoInc, errorResponse.destination, r -> {}, r -> {
+                        parameterTransformationLogger, autoInc, errorResponse.destination, reservedIds != null, r -> {
+                            // Unsuccessful requests are not logged with IDs. Unless in lock-free execution mode,
+                            // they do not consume IDs either; in that mode, the IDs were already committed, leaving gaps
+                            r.setIncrementalIdPerEndpoint(null);
+                            r.setRandomIdPerApplication(null);
+                        }, r -> {
                             r.setExceptionMessage(e.getMessage());
                             r.setHttpRequestFailedUrl(e instanceof HttpRequestFailedException
                                 ? (((HttpRequestFailedException) e).url) : null);
@@ -9,7 +9,6 @@ import endpoints.config.*;
 import endpoints.config.ApplicationFactory.ApplicationNotFoundException;
 import endpoints.config.EndpointHierarchyNode.NodeNotFoundException;
 import endpoints.shortlinktoendpoint.ShortLinkToEndpointExpiryJob;
-import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
 import org.apache.commons.lang.StringEscapeUtils;
 import org.slf4j.LoggerFactory;
@@ -20,6 +19,7 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.Part;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
@@ -35,18 +35,27 @@ import static java.util.stream.Collectors.toMap;
 @SuppressWarnings("serial")
 public class EndpointExecutorServlet extends AbstractEndpointsServlet {
     
-    @RequiredArgsConstructor
+    /** Copied into memory, as the container deletes the part once the request has completed, e.g. timed out */
     protected static class ServletUploadedFile extends UploadedFile {
-        final @Nonnull Part part;
+        final @Nonnull String fieldName, contentType;
+        final @CheckForNull String submittedFileName;
+        final @Nonnull byte[] contents;
         
-        @Override public @Nonnull String getFieldName() { return part.getName(); }
-        @Override public @Nonnull String getContentType() { return part.getContentType(); }
         @SneakyThrows(IOException.class)
-        @Override public @Nonnull InputStream getInputStream() { return part.getInputStream(); }
+        protected ServletUploadedFile(@Nonnull Part part) {
+            fieldName = part.getName();
+            contentType = part.getContentType();
+            submittedFileName = part.getSubmittedFileName();
+            try (var i = part.getInputStream()) { contents = i.readAllBytes(); }
+        }
+        
+        @Override public @Nonnull String getFieldName() { return fieldName; }
+        @Override public @Nonnull String getContentType() { return contentType; }
+        @Override public @Nonnull InputStream getInputStream() { return new ByteArrayInputStream(contents); }
         @Override public @CheckForNull String getSubmittedFileName() {
-            if ("".equals(part.getSubmittedFileName())) throw new RuntimeException("Filename for file upload field '" 
+            if ("".equals(submittedFileName)) throw new RuntimeException("Filename for file upload field '" 
                 + getFieldName() + "' may be missing or present, but may not be empty");
-            return part.getSubmittedFileName(); 
+            return submittedFileName; 
         }
     }
     
@@ -56,8 +65,6 @@ public class EndpointExecutorServlet extends AbstractEndpointsServlet {
         var log = LoggerFactory.getLogger(getClass());
         
         log.info("Request class: " + servletRequest.getClass());
-        log.info("Part class: " + request.getUploadedFiles().stream()
-            .map(x -> ((ServletUploadedFile)x).part.getClass().toString()).findAny().orElse("(no uploads)"));
         log.info("Request class loader: " + servletRequest.getClass().getClassLoader().getName());
         
         for (var e : request.getParameters().entrySet())
@@ -104,9 +111,14 @@ public class EndpointExecutorServlet extends AbstractEndpointsServlet {
 //        System.out.println("***********************");
 
         setCorsHeaders(req, resp);
-
+        var request = new ServletRequest(req);
+        logParamsForDebugging(req, request);
+        processAsync(req, response -> processRequest(request, response));
+    }
+    
+    protected void processRequest(@Nonnull ServletRequest req, @Nonnull AsyncResponse response) throws IOException {
         try (var ignored = new Timer(getClass().getSimpleName())) {
-            var path = req.getRequestURI().substring(req.getContextPath().length());
+            var path = req.getPath();
             var m = Pattern.compile("/([\\w-]+)/([\\w-]+)").matcher(path);
             if ( ! m.matches()) throw new RequestInvalidException("Cannot understand URL '"+path+"', should be /<application>/<endpoint>");
             @CheckForNull var envName = req.getParameter("environment");
@@ -123,37 +135,33 @@ public class EndpointExecutorServlet extends AbstractEndpointsServlet {
                 tx.commit();
             }
             catch (PublishEnvironmentNotFoundException e) { 
-                resp.sendError(400, "Environment '"+envName+"' not found"); 
+                response.write(resp -> resp.sendError(400, "Environment '"+envName+"' not found")); 
                 return; 
             }
             catch (ApplicationNotFoundException e) {
                 var envLog = (envName == null || envName.equals(PublishEnvironment.getDefault().name()))
                     ? "" : " on "+envName+" environment";
-                resp.sendError(400, "Application '"+applicationName.name+"' not found"+envLog);
+                response.write(resp -> resp.sendError(400, "Application '"+applicationName.name+"' not found"+envLog));
                 return;
             }
             catch (NodeNotFoundException e) { 
-                resp.sendError(400, "Endpoint '" + endpointName.name +"' not found in this application");
+                response.write(resp -> resp.sendError(400, "Endpoint '" + endpointName.name +"' not found in this application"));
                 return; 
             }
 
-            var request = new ServletRequest(req);
-            
-            logParamsForDebugging(req, request);
-                
             var suppliedHash = req.getParameter("hash");
 
             new EndpointExecutor().execute(environment, applicationName, application, endpoint,
                 Boolean.parseBoolean(req.getParameter("debug")),
-                suppliedHash, request, responseContent -> responseContent.deliver(resp));
+                suppliedHash, req, response);
         }
         catch (RequestInvalidException e) {
             LoggerFactory.getLogger(getClass()).error("Request invalid", e);
-            resp.sendError(400, "Request invalid: " + e.getMessage());
+            response.write(resp -> resp.sendError(400, "Request invalid: " + e.getMessage()));
         }
         catch (Exception e) { 
             LoggerFactory.getLogger(getClass()).error("An internal error occurred", e);
-            resp.sendError(500, "An internal error occurred");
+            response.write(resp -> resp.sendError(500, "An internal error occurred"));
         }
     }
     
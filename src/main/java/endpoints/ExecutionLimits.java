@@ -0,0 +1,78 @@
+package endpoints;
+
+import lombok.RequiredArgsConstructor;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide bounds on concurrency, shared by all requests to all applications.
+ *    <p>
+ * Each request executes its task graph on a {@link SharedThreadPool}, whose threads for CPU-bound work such as XSLT
+ * are shared by all requests. These limits bound how many requests
+ * may execute at once, and how many blocking I/O operations (HTTP requests, database queries),
+ * which are executed "off pool", may run at once across all requests. 
+ * Work beyond the limits waits, which is published in {@link Metrics}.
+ */
+public class ExecutionLimits {
+    
+    private static ExecutionLimits sharedInstance = null;
+
+    public interface Permit extends AutoCloseable {
+        @Override void close();
+    }
+
+    @RequiredArgsConstructor
+    public static class Limit {
+        protected final @Nonnull Semaphore semaphore;
+        protected final @Nonnull AtomicInteger waiting = new AtomicInteger(), active = new AtomicInteger();
+
+        protected Limit(@Nonnull String name, @Nonnull String description, int permits) {
+            this(new Semaphore(permits, true));
+            Metrics.registerGauge("endpoints_" + name + "_active", description + " currently executing", active::get);
+            Metrics.registerGauge("endpoints_" + name + "_waiting", description + " currently waiting to execute", waiting::get);
+        }
+
+        /** Blocks until the limit allows execution, close the returned object when finished */
+        public @Nonnull Permit acquire() {
+            waiting.incrementAndGet();
+            try { semaphore.acquire(); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); throw new RuntimeException(e); }
+            finally { waiting.decrementAndGet(); }
+
+            return newPermit();
+        }
+
+        /** As {@link #acquire()}, but returns null immediately if the maximum number are already waiting */
+        public @CheckForNull Permit acquireUnlessTooManyWaiting(int maxWaiting) {
+            try { if (semaphore.tryAcquire(0, TimeUnit.SECONDS)) return newPermit(); } // respects fairness, unlike tryAcquire()
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); throw new RuntimeException(e); }
+
+            if (waiting.get() >= maxWaiting) return null;
+            return acquire();
+        }
+
+        protected @Nonnull Permit newPermit() {
+            active.incrementAndGet();
+            return () -> {
+                active.decrementAndGet();
+                semaphore.release();
+            };
+        }
+    }
+
+    public final @Nonnull Limit requests, io;
+
+    public static synchronized @Nonnull ExecutionLimits get() {
+        if (sharedInstance == null) sharedInstance = new ExecutionLimits(DeploymentParameters.get());
+        return sharedInstance;
+    }
+
+    protected ExecutionLimits(@Nonnull DeploymentParameters params) {
+        requests = new Limit("requests", "Endpoint requests", params.maxConcurrentRequests);
+        io = new Limit("io_tasks", "Blocking HTTP and database operations", params.maxConcurrentIoTasks);
+    }
+}
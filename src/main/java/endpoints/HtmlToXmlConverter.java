@@ -0,0 +1,96 @@
+package endpoints;
+
+import com.databasesandlife.util.DomParser;
+import org.apache.commons.io.input.ProxyInputStream;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Comment;
+import org.jsoup.nodes.DataNode;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
+import org.w3c.dom.DOMException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Converts HTML, which is parsed by jsoup as a browser would, to XML.
+ *    <p>
+ * The DOM is built directly from jsoup's tree, rather than serializing jsoup's tree as XML and parsing that XML.
+ * Text is as in the HTML, rather than indented as jsoup would format it. Attributes whose names are not valid
+ * in XML, such as "@click", are left out.
+ */
+public class HtmlToXmlConverter {
+
+    public static class HtmlTooLargeException extends IOException {
+        public HtmlTooLargeException(long maxBytes) {
+            super("HTML is larger than the maximum of " + maxBytes + " bytes");
+        }
+    }
+
+    /** Jsoup reads all the HTML before parsing it, so limit the memory used by large responses */
+    protected static class LimitedInputStream extends ProxyInputStream {
+        protected final long maxBytes;
+        protected long byteCount = 0;
+
+        public LimitedInputStream(@Nonnull InputStream in, long maxBytes) {
+            super(in);
+            this.maxBytes = maxBytes;
+        }
+
+        @Override protected void afterRead(int n) throws IOException {
+            if (n > 0) byteCount += n;
+            if (byteCount > maxBytes) throw new HtmlTooLargeException(maxBytes);
+        }
+    }
+
+    /** @return the new element, or null if the node is not an element */
+    protected @CheckForNull Element appendNode(@Nonnull org.w3c.dom.Node parent, @Nonnull Node node) {
+        var document = parent instanceof Document ? (Document) parent : parent.getOwnerDocument();
+        if (node instanceof org.jsoup.nodes.Element) {
+            var element = document.createElement(((org.jsoup.nodes.Element) node).tagName());
+            for (var attribute : node.attributes()) {
+                try { element.setAttribute(attribute.getKey(), attribute.getValue()); }
+                catch (DOMException ignored) { }
+            }
+            return (Element) parent.appendChild(element);
+        }
+        else if (node instanceof Comment) parent.appendChild(document.createComment(((Comment) node).getData()));
+        else if (parent instanceof Document) return null; // Document type, XML declaration, or text outside <html>
+        else if (node instanceof TextNode) parent.appendChild(document.createTextNode(((TextNode) node).getWholeText()));
+        else if (node instanceof DataNode) parent.appendChild(document.createTextNode(((DataNode) node).getWholeData()));
+        return null;
+    }
+
+    /**
+     * @param maxBytes the maximum size of the HTML
+     * @return the &lt;html&gt; element
+     * @throws DOMException if the HTML contains an element name which is not valid in XML
+     */
+    public @Nonnull Element convert(@Nonnull InputStream htmlInputStream, long maxBytes)
+    throws IOException, HtmlTooLargeException, DOMException {
+        var html = Jsoup.parse(new LimitedInputStream(htmlInputStream, maxBytes), null, "");
+
+        var document = DomParser.newDocumentBuilder().newDocument();
+        NodeTraversor.traverse(new NodeVisitor() {
+            protected org.w3c.dom.Node current = document;
+
+            @Override public void head(@Nonnull Node node, int depth) {
+                if (node == html) return;
+                var element = appendNode(current, node);
+                if (element != null) current = element;
+            }
+
+            @Override public void tail(@Nonnull Node node, int depth) {
+                if (node instanceof org.jsoup.nodes.Element && node != html) current = current.getParentNode();
+            }
+        }, html);
+
+        return document.getDocumentElement();
+    }
+}
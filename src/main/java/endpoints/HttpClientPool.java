@@ -0,0 +1,229 @@
+package endpoints;
+
+import lombok.RequiredArgsConstructor;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Shared client for all outgoing HTTP requests, i.e. &lt;xml-from-url&gt;, HTTP tasks and &lt;response-from-url&gt;.
+ *    <p>
+ * Connections are kept alive and reused across requests, HTTP/2 is negotiated with HTTPS servers which support it,
+ * and TLS sessions are reused. The number of concurrent requests to each host is limited, and if too many are
+ * waiting for that limit, further requests fail immediately ("bulkhead"). Requests to a host which is failing
+ * also fail immediately, see {@link CircuitBreaker}. Reading the response body times out as waiting for the headers does,
+ * see {@link HttpClientResponseConnection}.
+ * The JDK client does not publish its connection pool, so the published {@link Metrics} are
+ * the number of requests per host, and the time spent connecting and waiting for response headers.
+ */
+public class HttpClientPool {
+
+    private static HttpClientPool sharedInstance = null;
+
+    public static class TooManyRequestsWaitingException extends IOException {
+        public TooManyRequestsWaitingException(@Nonnull String host) {
+            super("Too many requests to '" + host + "' are waiting, as the maximum per host are executing");
+        }
+    }
+
+    @RequiredArgsConstructor
+    protected static class Host {
+        protected final @Nonnull ExecutionLimits.Limit limit;
+        protected final @Nonnull CircuitBreaker circuitBreaker;
+    }
+
+    protected final @Nonnull HttpClient client;
+    protected final @Nonnull DeploymentParameters params;
+    protected final @Nonnull Map<String, Host> hosts = new ConcurrentHashMap<>();
+    /** See {@link HttpClientResponseConnection} */
+    protected final @Nonnull ScheduledExecutorService bodyTimeoutChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+        var thread = new Thread(r, "endpoints-http-body-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+    protected final @Nonnull Metrics.Counter requestCount = Metrics.registerCounter(
+        "endpoints_http_requests_total", "Outgoing HTTP requests");
+    protected final @Nonnull Metrics.Counter responseWaitMillis = Metrics.registerCounter(
+        "endpoints_http_response_wait_milliseconds_total",
+        "Time spent connecting and waiting for response headers, summed over all outgoing HTTP requests");
+    protected final @Nonnull Metrics.Counter circuitBreakerRejectedCount = Metrics.registerCounter(
+        "endpoints_http_rejected_requests_total{reason=\"circuit_breaker\"}", 
+        "Outgoing HTTP requests not sent, as the host is failing, or too many requests to it are waiting");
+    protected final @Nonnull Metrics.Counter tooManyWaitingRejectedCount = Metrics.registerCounter(
+        "endpoints_http_rejected_requests_total{reason=\"too_many_waiting\"}", 
+        "Outgoing HTTP requests not sent, as the host is failing, or too many requests to it are waiting");
+    protected final @Nonnull Metrics.Counter hedgedCount = Metrics.registerCounter(
+        "endpoints_http_hedged_requests_total", 
+        "Outgoing HTTP requests sent a second time, as the first had not been answered after hedge-after-ms");
+    protected final @Nonnull Metrics.Counter hedgedWonCount = Metrics.registerCounter(
+        "endpoints_http_hedged_requests_won_total", 
+        "Outgoing HTTP requests sent a second time, whose second request was answered first");
+
+    public static synchronized @Nonnull HttpClientPool get() {
+        if (sharedInstance == null) sharedInstance = new HttpClientPool(DeploymentParameters.get());
+        return sharedInstance;
+    }
+
+    protected HttpClientPool(@Nonnull DeploymentParameters params) {
+        // Read by the JDK when its connection pool is created
+        if (System.getProperty("jdk.httpclient.keepalive.timeout") == null)
+            System.setProperty("jdk.httpclient.keepalive.timeout", Long.toString(params.httpKeepAlive.toSeconds()));
+
+        var builder = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2) // Falls back to HTTP/1.1 if the server does not support it
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .connectTimeout(params.httpConnectTimeout);
+        if (VirtualThreads.isEnabled()) builder.executor(VirtualThreads.newBlockingIoExecutor("endpoints-http", 1));
+        client = builder.build();
+        this.params = params;
+    }
+
+    protected @Nonnull Host getHost(@Nonnull String host) {
+        return hosts.computeIfAbsent(host, h -> {
+            var limit = new ExecutionLimits.Limit(new Semaphore(params.httpMaxConnectionsPerHost, true));
+            var circuitBreaker = new CircuitBreaker(h, params.httpCircuitBreakerFailurePercent,
+                params.httpCircuitBreakerMinRequests, params.httpCircuitBreakerWindow, params.httpCircuitBreakerOpenDuration);
+            var labels = "{host=\"" + h.replace("\"", "") + "\"}";
+            Metrics.registerGauge("endpoints_http_host_requests_active" + labels,
+                "Outgoing HTTP requests to this host currently executing", limit.active::get);
+            Metrics.registerGauge("endpoints_http_host_requests_waiting" + labels,
+                "Outgoing HTTP requests to this host waiting, as the maximum per host are executing", limit.waiting::get);
+            Metrics.registerGauge("endpoints_http_host_circuit_breaker_state" + labels,
+                "State of the circuit breaker of this host: 0 closed (requests are sent), 1 open (requests fail), " +
+                "2 half open (one request is sent to test the host)", () -> circuitBreaker.getState().ordinal());
+            return new Host(limit, circuitBreaker);
+        });
+    }
+
+    /**
+     * Sends the request, unless the host's circuit breaker is open, or too many requests to the host are waiting.
+     * @param maxWaiting if this number of requests to the host are waiting for a permit, fail immediately
+     */
+    protected @Nonnull CompletableFuture<HttpClientResponseConnection> sendAsync(
+        @Nonnull String hostName, @Nonnull HttpRequest request, int maxWaiting
+    ) throws IOException {
+        var host = getHost(hostName);
+
+        try { host.circuitBreaker.assertRequestAllowed(); }
+        catch (CircuitBreaker.CircuitBreakerOpenException e) { circuitBreakerRejectedCount.increment(); throw e; }
+
+        var permit = host.limit.acquireUnlessTooManyWaiting(maxWaiting);
+        if (permit == null) {
+            host.circuitBreaker.recordNotSent();
+            tooManyWaitingRejectedCount.increment();
+            throw new TooManyRequestsWaitingException(hostName);
+        }
+
+        var start = System.nanoTime();
+        var result = new CompletableFuture<HttpClientResponseConnection>();
+        var response = client.sendAsync(request, BodyHandlers.ofInputStream());
+        response.whenComplete((r, e) -> {
+            requestCount.increment();
+            responseWaitMillis.add((System.nanoTime() - start) / 1_000_000);
+            if (e == null) {
+                var connection = new HttpClientResponseConnection(r, permit, host.circuitBreaker, bodyTimeoutChecker);
+                if ( ! result.complete(connection)) connection.disconnect(); // result was cancelled
+            } else {
+                if (result.isCancelled()) host.circuitBreaker.recordNotSent();
+                else host.circuitBreaker.recordResult(false);
+                permit.close();
+                result.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+            }
+        });
+        result.whenComplete((r, e) -> { if (result.isCancelled()) response.cancel(true); });
+        return result;
+    }
+
+    protected static @Nonnull HttpClientResponseConnection await(
+        @Nonnull CompletableFuture<HttpClientResponseConnection> response
+    ) throws IOException {
+        try { 
+            return response.get(); 
+        }
+        catch (InterruptedException e) {
+            response.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /** 
+     * Blocks until response headers are received.
+     * @return {@link HttpURLConnection#disconnect()} must be called after the body has been read 
+     */
+    public @Nonnull HttpURLConnection send(@Nonnull HttpRequest request) throws IOException {
+        return send(request, null);
+    }
+
+    /** 
+     * Blocks until response headers are received.
+     * @param hedgeAfter if no response has been received after this time, an identical request is sent, and whichever 
+     *                   response is received first is used, the other request is cancelled. 
+     *                   Null means no such "hedged" request is sent. Only for requests without side effects.
+     * @return {@link HttpURLConnection#disconnect()} must be called after the body has been read 
+     */
+    public @Nonnull HttpURLConnection send(@Nonnull HttpRequest request, @CheckForNull Duration hedgeAfter)
+    throws IOException {
+        var hostName = String.valueOf(request.uri().getHost());
+        var first = sendAsync(hostName, request, params.httpMaxWaitingPerHost);
+        if (hedgeAfter == null) return await(first);
+
+        try { return first.get(hedgeAfter.toMillis(), TimeUnit.MILLISECONDS); }
+        catch (TimeoutException e) { /* send hedged request below */ }
+        catch (ExecutionException e) { return await(first); } // throws the exception
+        catch (InterruptedException e) {
+            first.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+
+        // Only hedge if the host has capacity, and is not failing, otherwise the hedge would only add load
+        final CompletableFuture<HttpClientResponseConnection> second;
+        try { second = sendAsync(hostName, request, 0); }
+        catch (IOException e) { return await(first); }
+        hedgedCount.increment();
+
+        // Whichever succeeds first, or the error if both fail
+        var winner = new CompletableFuture<HttpClientResponseConnection>();
+        var failures = new AtomicInteger();
+        BiConsumer<HttpClientResponseConnection, Throwable> onComplete = (r, e) -> {
+            if (e == null) { if ( ! winner.complete(r)) r.disconnect(); }
+            else if (failures.incrementAndGet() == 2) winner.completeExceptionally(e);
+        };
+        first.whenComplete(onComplete);
+        second.whenComplete(onComplete);
+
+        try {
+            var result = await(winner);
+            if (second.getNow(null) == result) hedgedWonCount.increment();
+            return result;
+        }
+        finally {
+            first.cancel(true); // does nothing if already completed
+            second.cancel(true);
+        }
+    }
+}
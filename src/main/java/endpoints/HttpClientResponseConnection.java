@@ -0,0 +1,139 @@
+package endpoints;
+
+import lombok.SneakyThrows;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.input.ProxyInputStream;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/** 
+ * Presents a response received by {@link HttpClientPool} as an {@link HttpURLConnection},
+ * which is what the code processing HTTP responses uses.
+ *    <p>
+ * The JDK client's request timeout only applies to waiting for the response headers. So, as with
+ * {@link HttpURLConnection#setReadTimeout}, a read of the body fails if no data is received within that timeout.
+ * The result of the request is recorded in the host's {@link CircuitBreaker} once the body has been read,
+ * so that failures reading the body are counted.
+ */
+public class HttpClientResponseConnection extends HttpURLConnection {
+
+    protected final @Nonnull HttpResponse<InputStream> response;
+    protected final @Nonnull ExecutionLimits.Permit permit;
+    protected final @Nonnull CircuitBreaker circuitBreaker;
+    protected final @Nonnull ScheduledExecutorService timeoutChecker;
+    protected final @CheckForNull Duration bodyReadTimeout;
+    protected final @Nonnull CountingInputStream body;
+    protected boolean disconnected = false;
+    /** Zero if no read is in progress */
+    protected volatile long readStartNanos = 0;
+    protected volatile boolean timedOut = false, bodyFailed = false;
+
+    protected class TimeoutInputStream extends ProxyInputStream {
+        public TimeoutInputStream(@Nonnull InputStream in) { super(in); }
+
+        @Override protected void beforeRead(int n) { readStartNanos = System.nanoTime(); }
+
+        @Override protected void afterRead(int n) throws IOException {
+            readStartNanos = 0;
+            // The JDK's stream returns end-of-file if it is closed during a read
+            if (timedOut) throw new HttpTimeoutException("No data received from '" + url + "' within the timeout, " 
+                + "while reading the response body");
+        }
+
+        @Override protected void handleIOException(@Nonnull IOException e) throws IOException {
+            readStartNanos = 0;
+            bodyFailed = true;
+            throw e;
+        }
+    }
+
+    @SneakyThrows(MalformedURLException.class)
+    public HttpClientResponseConnection(
+        @Nonnull HttpResponse<InputStream> response, @Nonnull ExecutionLimits.Permit permit,
+        @Nonnull CircuitBreaker circuitBreaker, @Nonnull ScheduledExecutorService timeoutChecker
+    ) {
+        super(response.uri().toURL()); // After any redirects, as HttpURLConnection
+        this.response = response;
+        this.permit = permit;
+        this.circuitBreaker = circuitBreaker;
+        this.timeoutChecker = timeoutChecker;
+        this.bodyReadTimeout = response.request().timeout().orElse(null);
+        this.body = new CountingInputStream(new TimeoutInputStream(response.body()));
+        this.connected = true;
+        this.responseCode = response.statusCode();
+        if (bodyReadTimeout != null) scheduleTimeoutCheck(bodyReadTimeout.toNanos());
+    }
+
+    protected void scheduleTimeoutCheck(long delayNanos) {
+        timeoutChecker.schedule(this::checkTimeout, delayNanos, NANOSECONDS);
+    }
+
+    /** Closes the body if a read has been waiting for longer than the timeout, which makes the read fail */
+    protected synchronized void checkTimeout() {
+        if (disconnected || bodyReadTimeout == null) return;
+        var start = readStartNanos;
+        var waited = start == 0 ? 0 : System.nanoTime() - start;
+        if (waited < bodyReadTimeout.toNanos()) { scheduleTimeoutCheck(bodyReadTimeout.toNanos() - waited); return; }
+        timedOut = true;
+        try { response.body().close(); }
+        catch (IOException ignored) { }
+    }
+
+    @Override public void connect() { }
+    @Override public boolean usingProxy() { return false; }
+
+    @Override public int getResponseCode() { return response.statusCode(); }
+
+    /** HTTP/2 has no reason phrase */
+    @Override public @CheckForNull String getResponseMessage() { return null; }
+
+    @Override public @CheckForNull String getHeaderField(@Nonnull String name) {
+        return response.headers().firstValue(name).orElse(null);
+    }
+
+    @Override public @Nonnull Map<String, List<String>> getHeaderFields() {
+        return response.headers().map();
+    }
+
+    @Override public @Nonnull InputStream getInputStream() throws IOException {
+        if (response.statusCode() >= 400) 
+            throw new IOException("Server returned HTTP response code: " + response.statusCode() + " for URL: " + url);
+        return body;
+    }
+
+    @Override public @CheckForNull InputStream getErrorStream() {
+        return response.statusCode() >= 400 ? body : null;
+    }
+
+    public @Nonnull HttpRequest getRequest() {
+        return response.request();
+    }
+
+    public long getBodyBytesRead() {
+        return body.getByteCount();
+    }
+
+    /** Returns the connection to the pool if the body has been completely read, otherwise closes it */
+    @Override public synchronized void disconnect() {
+        if (disconnected) return;
+        disconnected = true;
+        try { body.close(); }
+        catch (IOException ignored) { }
+        permit.close();
+        circuitBreaker.recordResult(response.statusCode() < 500 && ! bodyFailed && ! timedOut);
+    }
+}
@@ -16,15 +16,18 @@ import com.offerready.xslt.WeaklyCachedXsltTransformer;
 import com.offerready.xslt.WeaklyCachedXsltTransformer.DocumentTemplateInvalidException;
 import com.offerready.xslt.WeaklyCachedXsltTransformer.XsltCompilationThreads;
 import endpoints.EndpointExecutor.RequestInvalidException;
+import endpoints.HtmlToXmlConverter.HtmlTooLargeException;
+import endpoints.TransformationContext.DeadlineExceededException;
 import endpoints.config.IntermediateValueName;
 import endpoints.config.ParameterName;
+import endpoints.datasource.DataSourceCommand;
 import endpoints.datasource.TransformationFailedException;
 import lombok.SneakyThrows;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.LoggerFactory;
 import org.json.JSONException;
-import org.jsoup.Jsoup;
+import org.w3c.dom.DOMException;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.xml.sax.Attributes;
@@ -38,15 +41,23 @@ import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMResult;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
-import java.io.DataOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -60,8 +71,6 @@ import static endpoints.datasource.ParametersCommand.createParametersElement;
 import static java.lang.Boolean.parseBoolean;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.stream.Collectors.toList;
-import static java.util.stream.Collectors.toSet;
-import static org.jsoup.nodes.Document.OutputSettings.Syntax.xml;
 
 public class HttpRequestSpecification {
 
@@ -70,6 +79,10 @@ public class HttpRequestSpecification {
     }
 
     public final boolean ignoreIfError;
+    /** Whether identical parsed requests in flight at the same time share one request, see {@link InFlightHttpRequests} */
+    protected final boolean coalesce;
+    /** If no response has been received after this time, send a second identical request, see {@link HttpClientPool} */
+    protected final @CheckForNull Duration hedgeAfter;
     protected final @Nonnull String urlPattern;
     protected final @Nonnull HttpMethod method;
     protected final @Nonnull Map<String, String> getParameterPatterns;
@@ -179,6 +192,15 @@ public class HttpRequestSpecification {
         if (methodElement == null) method = HttpMethod.GET;
         else method = HttpMethod.valueOf(getMandatoryAttribute(methodElement, "name"));
 
+        // Only GET requests are free of side effects, so other requests are only shared if configured
+        coalesce = parseBoolean(getOptionalAttribute(command, "coalesce", Boolean.toString(method == HttpMethod.GET)));
+
+        try {
+            var hedgeAfterMillis = getOptionalAttribute(command, "hedge-after-ms");
+            hedgeAfter = hedgeAfterMillis == null ? null : Duration.ofMillis(Long.parseLong(hedgeAfterMillis));
+        }
+        catch (NumberFormatException e) { throw new ConfigurationException("hedge-after-ms attribute should be a number"); }
+
         getParameterPatterns = parseMap(command, "get-parameter", "name");
         requestHeaderPatterns = parseMap(command, "request-header", "name");
         postParameterPatterns = parseMap(command, "post-parameter", "name");
@@ -241,6 +263,12 @@ public class HttpRequestSpecification {
         if (bodyCount > 1)
             throw new ConfigurationException("An HTTP request can only have one body. " +
                 "Yet multiple types were set, out of <post-parameter>, <xml-body>, <json-body>");
+        
+        // A request with side effects must not be sent twice
+        var hasBody = ! postParameterPatterns.isEmpty() || requestBodyXmlTemplateContainer != null 
+            || requestBodyJsonElement != null;
+        if (hedgeAfter != null && (method != HttpMethod.GET || hasBody))
+            throw new ConfigurationException("hedge-after-ms is only possible for GET requests without a body");
     }
 
     public void assertParametersSuffice(
@@ -290,11 +318,76 @@ public class HttpRequestSpecification {
         throw new RuntimeException(e);
     }
 
+    /** Headers which the JDK HTTP client sets itself, and does not allow to be set. HttpURLConnection ignored them. */
+    protected static final @Nonnull Set<String> restrictedHeaders = Set.of("connection", "content-length", "expect", 
+        "host", "upgrade");
+
+    /** Errors are not ignored if the endpoint's deadline has been exceeded, as the endpoint cannot succeed anyway */
+    public void throwException(@Nonnull TransformationContext context, @Nonnull String url, @Nonnull Exception e) {
+        try { context.assertDeadlineNotExceeded(); }
+        catch (DeadlineExceededException e2) { throw new RuntimeException(e2); }
+        throwException(url, e);
+    }
+
+    /** Characters which may appear in a URI unencoded, apart from letters, digits and "%" */
+    protected static final @Nonnull String uriCharacters = "-._~:/?#[]@!$&'()*+,;=";
+
+    /** 
+     * HttpURLConnection accepted URLs containing e.g. spaces, which are not valid URIs, so encode them.
+     * Only such characters are encoded, so that existing escapes such as "%2F" are sent unchanged.
+     */
+    protected static @Nonnull URI toUri(@Nonnull String urlString) throws MalformedURLException, URISyntaxException {
+        var url = new URL(urlString);
+        try { return url.toURI(); }
+        catch (URISyntaxException e) {
+            var result = new StringBuilder();
+            for (int i = 0; i < urlString.length(); i++) {
+                var c = urlString.charAt(i);
+                var isEscape = c == '%' && i + 2 < urlString.length() 
+                    && Character.digit(urlString.charAt(i + 1), 16) >= 0 && Character.digit(urlString.charAt(i + 2), 16) >= 0;
+                if (c < 0x80 && (Character.isLetterOrDigit(c) || uriCharacters.indexOf(c) >= 0 || isEscape)) result.append(c);
+                else {
+                    var end = Character.isHighSurrogate(c) && i + 1 < urlString.length() ? i + 2 : i + 1;
+                    for (var b : urlString.substring(i, end).getBytes(UTF_8)) result.append(String.format("%%%02X", b & 0xFF));
+                    i = end - 1;
+                }
+            }
+            return new URI(result.toString());
+        }
+    }
+
+    /** 
+     * Receives either the response from the server, or a response which has already been parsed, 
+     * from {@link HttpResponseCache} or from an identical request in flight,
+     * or neither if an error occurred and this request is set to ignore errors.
+     */
+    protected interface ResponseConsumer {
+        /** @return private copy of the parsed response, which may be cached and shared with identical requests, or null */
+        @CheckForNull Element accept(@CheckForNull URLConnection response, @CheckForNull Element parsed);
+    }
+
     /** @param after URLConnection is null if an error occurred and this request is set to ignore errors */
     public void scheduleExecutionAndAssertNoError(
         @Nonnull TransformationContext context,    
         @Nonnull Set<IntermediateValueName> visibleIntermediateValues,
         @Nonnull Consumer<URLConnection> after
+    )  {
+        scheduleExecution(context, visibleIntermediateValues, false, null, (response, parsed) -> {
+            after.accept(response);
+            return null;
+        });
+    }
+
+    /** 
+     * @param shareResponses whether the response may be taken from {@link HttpResponseCache}, 
+     *                       or shared with identical requests in flight, see {@link InFlightHttpRequests}
+     * @param cacheDuration overrides the Cache-Control header of the response, or null
+     */
+    protected void scheduleExecution(
+        @Nonnull TransformationContext context,    
+        @Nonnull Set<IntermediateValueName> visibleIntermediateValues,
+        boolean shareResponses, @CheckForNull Duration cacheDuration,
+        @Nonnull ResponseConsumer after
     )  {
         var stringParams = context.getStringParametersIncludingIntermediateValues(visibleIntermediateValues);
         var baseUrl = replacePlainTextParameters(urlPattern, stringParams); // without ?x=y parameters
@@ -307,17 +400,18 @@ public class HttpRequestSpecification {
                 ? baseUrl
                 : baseUrl + "?" + WebEncodingUtils.encodeGetParameters(getParameters);
 
-            var urlConnection = (HttpURLConnection) new URL(urlAndParams).openConnection();
-            urlConnection.setRequestMethod(method.name());
+            var uri = toUri(urlAndParams);
+            var headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+            var requestBody = new AtomicReference<byte[]>(); // Set by precursor tasks, if there is a body
 
             for (var e : requestHeaderPatterns.entrySet())
-                urlConnection.setRequestProperty(e.getKey(), replacePlainTextParameters(e.getValue(), stringParams));
+                headers.put(e.getKey(), replacePlainTextParameters(e.getValue(), stringParams));
 
             if (usernamePatternOrNull != null && passwordPatternOrNull != null) {
                 var user = replacePlainTextParameters(usernamePatternOrNull, stringParams);
                 var pw = replacePlainTextParameters(passwordPatternOrNull, stringParams);
                 var encodedAuth = Base64.encodeBase64String((user + ":" + pw).getBytes(UTF_8));
-                urlConnection.setRequestProperty("Authorization", "Basic " + encodedAuth);
+                headers.put("Authorization", "Basic " + encodedAuth);
             }
             
             if ( ! postParameterPatterns.isEmpty()) {
@@ -325,23 +419,15 @@ public class HttpRequestSpecification {
                     var expanded = new HashMap<String, String>();
                     for (var e : postParameterPatterns.entrySet())
                         expanded.put(e.getKey(), replacePlainTextParameters(e.getValue(), stringParams));
-                    var bodyBytes = WebEncodingUtils.encodeGetParameters(expanded).toString().getBytes(StandardCharsets.UTF_8);
-                    urlConnection.setDoOutput(true);
-                    try (DataOutputStream wr = new DataOutputStream(urlConnection.getOutputStream())) {
-                        wr.write(bodyBytes);
-                    }
-                    catch (IOException e) {
-                        throwException(baseUrl, e); // IOException can be URL not found etc.
-                        after.accept(null);
-                    }
+                    requestBody.set(WebEncodingUtils.encodeGetParameters(expanded).toString().getBytes(StandardCharsets.UTF_8));
                 };
+                headers.putIfAbsent("Content-Type", "application/x-www-form-urlencoded");
                 context.threads.addTaskOffPool(req);
                 precursorTasks.add(req);
             }
 
             if (requestBodyXmlTemplate != null || requestBodyXmlTransformer != null) {
-                if ( ! requestHeaderPatterns.keySet().stream().map(x -> x.toLowerCase()).collect(toSet()).contains("content-type"))
-                    urlConnection.setRequestProperty("Content-Type", "application/xml; charset=UTF-8");
+                headers.putIfAbsent("Content-Type", "application/xml; charset=UTF-8");
                 
                 // Get XML (either fixed in <xml-body>, or result of XSLT) 
                 final Document body;
@@ -364,15 +450,16 @@ public class HttpRequestSpecification {
                 
                 // After XSLT results expanded, make request
                 Consumer<Document> makeRequest = bodyAfterXsltElementExpansion -> {
-                    urlConnection.setDoOutput(true);
-                    try (var o = urlConnection.getOutputStream()) {
-                        // This does not do any XSLT, it simply sends the DOM to the HTTP server
+                    try {
+                        // This does not do any XSLT, it simply serializes the DOM to send to the HTTP server
+                        var o = new ByteArrayOutputStream();
                         TransformerFactory.newInstance().newTransformer().transform(
                             new DOMSource(bodyAfterXsltElementExpansion), new StreamResult(o));
+                        requestBody.set(o.toByteArray());
                     }
-                    catch (IOException | TransformerException e) {
-                        throwException(baseUrl, e); // IOException can be URL not found etc.
-                        after.accept(null);
+                    catch (TransformerException e) {
+                        throwException(context, baseUrl, e);
+                        after.accept(null, null);
                     }
                 };
                 
@@ -389,11 +476,9 @@ public class HttpRequestSpecification {
             }
 
             if (requestBodyJsonTemplate != null || requestBodyJsonTransformer != null) {
-                if ( ! requestHeaderPatterns.keySet().stream().map(x -> x.toLowerCase()).collect(toSet()).contains("content-type"))
-                    urlConnection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-                urlConnection.setDoOutput(true);
+                headers.putIfAbsent("Content-Type", "application/json; charset=UTF-8");
                 Runnable sendRequest = () -> { 
-                    try (var o = urlConnection.getOutputStream()) {
+                    try (var o = new ByteArrayOutputStream()) {
                         if (requestBodyJsonTemplate != null) {
                             var body = expandJson(stringParams, requestBodyJsonTemplate);
                             new ObjectMapper().writeValue(o, body);
@@ -408,10 +493,11 @@ public class HttpRequestSpecification {
                         } else {
                             throw new RuntimeException("Unreachable");
                         }
+                        requestBody.set(o.toByteArray());
                     }
                     catch (IOException | DocumentTemplateInvalidException | TransformerException e) {
-                        throwException(baseUrl, e);
-                        after.accept(null);
+                        throwException(context, baseUrl, e);
+                        after.accept(null, null);
                     }
                 };
                 context.threads.addTaskOffPool(sendRequest);
@@ -419,7 +505,53 @@ public class HttpRequestSpecification {
             }
             
             Runnable executeRequest = () -> {
-                try (var ignored2 = new Timer("Execute HTTP request to '" + baseUrl + "'")) {
+                var bodyBytes = requestBody.get();
+                var key = shareResponses ? HttpResponseCache.newKey(method.name(), uri, headers, bodyBytes) : null;
+                var cached = key != null && HttpResponseCache.isCacheable(key) ? HttpResponseCache.get(key) : null;
+                if (cached != null && cached.isFresh()) { after.accept(null, cached.newElement()); return; }
+                var revalidate = cached != null && cached.etag != null ? cached : null;
+
+                var flight = key != null && coalesce ? InFlightHttpRequests.join(key) : null;
+                if (flight != null && ! flight.leader) {
+                    try {
+                        var shared = flight.await(context.getTimeoutWithinDeadline(DeploymentParameters.get().httpReadTimeout));
+                        if (shared != null) { after.accept(null, shared); return; }
+                    }
+                    catch (DeadlineExceededException e) {
+                        throwException(context, baseUrl, e);
+                        after.accept(null, null);
+                        return;
+                    }
+                    // Otherwise the leader failed, so make our own request, and handle its errors ourselves
+                }
+                var leaderOf = flight != null && flight.leader ? flight : null;
+
+                HttpURLConnection urlConnection = null;
+                Element sharedResponse = null;
+                try (var ignored2 = new Timer("Execute HTTP request to '" + baseUrl + "'");
+                     var ignoredPermit = ExecutionLimits.get().io.acquire()) {
+                    var request = HttpRequest.newBuilder(uri)
+                        // HttpURLConnection sent GET requests with a body as POST
+                        .method(method == HttpMethod.GET && bodyBytes != null ? "POST" : method.name(),
+                            bodyBytes == null ? BodyPublishers.noBody() : BodyPublishers.ofByteArray(bodyBytes))
+                        // Time may have passed waiting for precursors or permit
+                        .timeout(context.getTimeoutWithinDeadline(DeploymentParameters.get().httpReadTimeout));
+                    // HTTP/2 is only negotiated over TLS, there are servers which do not handle an upgrade from HTTP/1.1
+                    if ("http".equalsIgnoreCase(uri.getScheme())) request.version(HttpClient.Version.HTTP_1_1);
+                    for (var h : headers.entrySet())
+                        if ( ! restrictedHeaders.contains(h.getKey().toLowerCase())) request.header(h.getKey(), h.getValue());
+                    if (revalidate != null) request.header("If-None-Match", revalidate.etag);
+
+                    urlConnection = HttpClientPool.get().send(request.build(), hedgeAfter);
+                    
+                    if (revalidate != null && urlConnection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                        var freshness = HttpResponseCache.getFreshness(urlConnection, cacheDuration);
+                        revalidate.revalidated(freshness == null ? Duration.ZERO : freshness);
+                        sharedResponse = revalidate.element;
+                        after.accept(null, revalidate.newElement());
+                        return;
+                    }
+
                     if (urlConnection.getResponseCode() < 200 || urlConnection.getResponseCode() >= 300) {
                         String body = null;
                         var type = urlConnection.getContentType();
@@ -445,77 +577,114 @@ public class HttpRequestSpecification {
                             + reasonPhrase + bodyMsg);
                     }
 
-                    after.accept(urlConnection);
+                    sharedResponse = after.accept(urlConnection, null);
+                    if (key != null && sharedResponse != null && HttpResponseCache.isCacheable(key)) {
+                        var size = urlConnection instanceof HttpClientResponseConnection
+                            ? ((HttpClientResponseConnection) urlConnection).getBodyBytesRead()
+                            : urlConnection.getContentLengthLong();
+                        HttpResponseCache.put(key, urlConnection, cacheDuration, sharedResponse, size);
+                    }
+                }
+                catch (IOException | HttpRequestFailedException | DeadlineExceededException e) { 
+                    throwException(context, baseUrl, e);
+                    after.accept(null, null);
                 }
-                catch (IOException | HttpRequestFailedException e) { 
-                    throwException(baseUrl, e);
-                    after.accept(null);
+                finally {
+                    if (urlConnection != null) urlConnection.disconnect();
+                    if (leaderOf != null) leaderOf.complete(sharedResponse);
                 }
             };
             context.threads.addTaskWithDependenciesOffPool(precursorTasks, executeRequest);
         }
-        catch (TransformationFailedException | IOException | DocumentTemplateInvalidException | TransformerException e) {
-            throwException(baseUrl, e);
-            after.accept(null);
+        catch (TransformationFailedException | IOException | URISyntaxException | DocumentTemplateInvalidException 
+               | TransformerException e) {
+            throwException(context, baseUrl, e);
+            after.accept(null, null);
         }
     }
 
+    /** Parses XML, JSON, HTML or empty responses to XML */
+    protected static @Nonnull Element parseResponse(@Nonnull URLConnection urlConnection)
+    throws IOException, HttpRequestFailedException {
+        var url = urlConnection.getURL();
+
+        if (urlConnection.getContentLength() == 0) {
+            var response = DomParser.newDocumentBuilder().newDocument();
+            response.appendChild(response.createElement("empty-response"));
+            return response.getDocumentElement();
+        }
+        else if (urlConnection.getContentType().toLowerCase().contains("json")) {
+            try {
+                return new JsonToXmlConverter().convert(
+                    urlConnection.getContentType(), urlConnection.getInputStream(), "response");
+            }
+            catch (JSONException e) {
+                throw new HttpRequestFailedException(url.toExternalForm(), null, 
+                    "Cannot parse JSON response from '" + url + "'", e);
+            }
+        }
+        else if (urlConnection.getContentType().toLowerCase().contains("xml")) {
+            try (var inputStream = urlConnection.getInputStream()) {
+                var downloadedXml = DomParser.newDocumentBuilder().parse(inputStream);
+                return downloadedXml.getDocumentElement();
+            }
+            catch (SAXException e) {
+                throw new HttpRequestFailedException(url.toExternalForm(), null, "URL '" + url + "' contained invalid XML", e);
+            }
+        }
+        else if (urlConnection.getContentType().toLowerCase().contains("html")) {
+            try (var inputStream = urlConnection.getInputStream()) {
+                return new HtmlToXmlConverter().convert(inputStream, DeploymentParameters.get().httpHtmlMaxBytes);
+            }
+            catch (HtmlTooLargeException e) {
+                throw new HttpRequestFailedException(url.toExternalForm(), null, "URL '" + url + "'", e);
+            }
+            catch (DOMException e) {
+                throw new HttpRequestFailedException(url.toExternalForm(), null, "URL '" + url + "': HTML could not be parsed", e);
+            }
+        }
+        else throw new HttpRequestFailedException(url.toExternalForm(), null, 
+                "URL '" + url + "' returned an unexpected content type " +
+                "'" + urlConnection.getContentType() + "': Expecting XML, JSON, or empty content");
+    }
+
     /** @param after null if an error occurred and this request is set to ignore errors. Does not expand variables in response */
     public void scheduleExecutionAndParseResponse(
         @Nonnull TransformationContext context,
         @Nonnull Set<IntermediateValueName> visibleIntermediateValues,
         @Nonnull Consumer<Element> after
     ) {
-        scheduleExecutionAndAssertNoError(context, visibleIntermediateValues, (@CheckForNull var urlConnection) -> {
-            if (urlConnection == null) { after.accept(null); return; }
+        scheduleExecutionAndParseResponse(context, visibleIntermediateValues, false, null, after);
+    }
+
+    /** 
+     * @param shareResponses whether the response may be taken from, and stored in, {@link HttpResponseCache},
+     *                       and shared with identical requests in flight, see {@link InFlightHttpRequests}
+     * @param cacheDuration overrides the Cache-Control header of the response, or null
+     * @param after null if an error occurred and this request is set to ignore errors. Does not expand variables in response 
+     */
+    public void scheduleExecutionAndParseResponse(
+        @Nonnull TransformationContext context,
+        @Nonnull Set<IntermediateValueName> visibleIntermediateValues,
+        boolean shareResponses, @CheckForNull Duration cacheDuration,
+        @Nonnull Consumer<Element> after
+    ) {
+        scheduleExecution(context, visibleIntermediateValues, shareResponses, cacheDuration, (urlConnection, parsed) -> {
+            if (parsed != null) { after.accept(parsed); return null; }
+            if (urlConnection == null) { after.accept(null); return null; }
 
             var url = urlConnection.getURL();
     
             try {
-                if (urlConnection.getContentLength() == 0) {
-                    var response = DomParser.newDocumentBuilder().newDocument();
-                    response.appendChild(response.createElement("empty-response"));
-                    after.accept(response.getDocumentElement());
-                }
-                else if (urlConnection.getContentType().toLowerCase().contains("json")) {
-                    try {
-                        var xmlFromJson = new JsonToXmlConverter().convert(
-                            urlConnection.getContentType(), urlConnection.getInputStream(), "response");
-                        after.accept(xmlFromJson);
-                    }
-                    catch (JSONException e) {
-                        throw new HttpRequestFailedException(url.toExternalForm(), null, 
-                            "Cannot parse JSON response from '" + url + "'", e);
-                    }
-                }
-                else if (urlConnection.getContentType().toLowerCase().contains("xml")) {
-                    try (var inputStream = urlConnection.getInputStream()) {
-                        var downloadedXml = DomParser.newDocumentBuilder().parse(inputStream);
-                        after.accept(downloadedXml.getDocumentElement());
-                    }
-                    catch (SAXException e) {
-                        throw new HttpRequestFailedException(url.toExternalForm(), null, "URL '" + url + "' contained invalid XML", e);
-                    }
-                }
-                else if (urlConnection.getContentType().toLowerCase().contains("html")) {
-                    try (var inputStream = urlConnection.getInputStream()) {
-                        var document = Jsoup.parse(inputStream, null, "");
-                        document.outputSettings().syntax(xml);
-                        var xmlString = document.html();
-                        var xml = DomParser.from(xmlString);
-                        after.accept(xml);
-                    }
-                    catch (ConfigurationException e) {
-                        throw new HttpRequestFailedException(url.toExternalForm(), null, "URL '" + url + "': HTML could not be parsed", e);
-                    }
-                }
-                else throw new HttpRequestFailedException(url.toExternalForm(), null, 
-                        "URL '" + url + "' returned an unexpected content type " +
-                        "'" + urlConnection.getContentType() + "': Expecting XML, JSON, or empty content");
+                var response = parseResponse(urlConnection);
+                var privateCopy = shareResponses ? DataSourceCommand.copy(response) : null; // before "after" may modify it
+                after.accept(response);
+                return privateCopy;
             }
             catch (IOException | HttpRequestFailedException e) { 
                 throwException(url.toExternalForm(), e);
                 after.accept(null);
+                return null;
             }
         });
     }
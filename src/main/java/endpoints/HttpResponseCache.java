@@ -0,0 +1,142 @@
+package endpoints;
+
+import endpoints.datasource.DataSourceCommand;
+import lombok.Value;
+import org.w3c.dom.Element;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.net.URI;
+import java.net.URLConnection;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Caches the parsed responses of GET requests made by &lt;xml-from-url&gt;, see "endpoints.lyx".
+ *    <p>
+ * Responses are fresh for the duration of their "Cache-Control: max-age", or for the duration of the
+ * "cache-seconds" attribute of the command, if present. Responses with an "ETag" are kept after they are no longer
+ * fresh, and are then revalidated with "If-None-Match", so that the body is not transferred and parsed again
+ * if it has not changed.
+ *    <p>
+ * The parsed XML is stored, before any parameters are expanded, as parameters differ between requests.
+ */
+public class HttpResponseCache {
+
+    /** 
+     * Responses may vary by any request header (e.g. "Accept", "Authorization"), so all request headers are part of the key.
+     * Also used by {@link InFlightHttpRequests}, which may share responses of requests with bodies.
+     */
+    @Value
+    public static class Key {
+        @Nonnull String method;
+        @Nonnull URI uri;
+        @Nonnull Map<String, String> headers;
+        /** Compared by content */
+        @CheckForNull byte[] body;
+    }
+
+    public static class Entry {
+        /** DOM is not thread-safe, so this private copy is only used via {@link #newElement()} */
+        protected final @Nonnull Element element;
+        public final @CheckForNull String etag;
+        protected volatile @Nonnull Instant freshUntil;
+
+        protected Entry(@Nonnull Element element, @CheckForNull String etag, @Nonnull Duration freshness) {
+            this.element = element;
+            this.etag = etag;
+            this.freshUntil = Instant.now().plus(freshness);
+        }
+
+        public boolean isFresh() {
+            return Instant.now().isBefore(freshUntil);
+        }
+
+        /** After the server has returned "304 Not Modified" */
+        public void revalidated(@Nonnull Duration freshness) {
+            freshUntil = Instant.now().plus(freshness);
+        }
+
+        public @Nonnull Element newElement() {
+            return DataSourceCommand.copy(element);
+        }
+    }
+
+    /** Responses with an ETag are kept for this long after they are no longer fresh, in case they are still valid */
+    protected static final @Nonnull Duration revalidationWindow = Duration.ofDays(1);
+    protected static final @Nonnull Pattern maxAgePattern =
+        Pattern.compile("(?:^|[,\\s])max-age\\s*=\\s*\"?(\\d+)", Pattern.CASE_INSENSITIVE);
+
+    protected static final @Nonnull Metrics.Counter hits = Metrics.registerCounter(
+        "endpoints_http_cache_hits_total",
+        "Outgoing HTTP GET requests whose response was found in cache, either fresh or to be revalidated");
+    protected static final @Nonnull Metrics.Counter misses = Metrics.registerCounter(
+        "endpoints_http_cache_misses_total", "Outgoing HTTP GET requests whose response was not found in cache");
+    protected static @CheckForNull LruCache<Key, Entry> cache = null;
+
+    protected static synchronized @Nonnull LruCache<Key, Entry> getCache() {
+        if (cache == null) {
+            cache = new LruCache<>(10_000, DeploymentParameters.get().httpCacheMaxBytes, hits, misses);
+            var c = cache;
+            Metrics.registerGauge("endpoints_http_cache_entries", "Parsed HTTP responses currently cached", c::size);
+        }
+        return cache;
+    }
+
+    public static boolean isEnabled() {
+        return DeploymentParameters.get().httpCacheMaxBytes > 0;
+    }
+
+    public static @Nonnull Key newKey(
+        @Nonnull String method, @Nonnull URI uri, @Nonnull Map<String, String> headers, @CheckForNull byte[] body
+    ) {
+        return new Key(method, uri, Map.copyOf(headers), body);
+    }
+
+    /** Only responses to GET requests without a body are cached */
+    public static boolean isCacheable(@Nonnull Key key) {
+        return isEnabled() && key.method.equals("GET") && key.body == null;
+    }
+
+    /** @return an entry which is either fresh, or which can be revalidated with its ETag */
+    public static @CheckForNull Entry get(@Nonnull Key key) {
+        return getCache().get(key);
+    }
+
+    /**
+     * @param cacheDuration from the command's configuration, overrides the response's headers
+     * @return null if the response may not be stored
+     */
+    public static @CheckForNull Duration getFreshness(@Nonnull URLConnection response, @CheckForNull Duration cacheDuration) {
+        if (cacheDuration != null) return cacheDuration;
+
+        var cacheControl = response.getHeaderField("Cache-Control");
+        if (cacheControl == null) return Duration.ZERO;
+        if (cacheControl.toLowerCase().contains("no-store")) return null;
+        if (cacheControl.toLowerCase().contains("no-cache")) return Duration.ZERO;
+
+        var maxAge = maxAgePattern.matcher(cacheControl);
+        if ( ! maxAge.find()) return Duration.ZERO;
+        return Duration.ofSeconds(Long.parseLong(maxAge.group(1)));
+    }
+
+    /**
+     * @param element private copy of the parsed response, which is not modified afterwards
+     * @param sizeBytes size of the response body, used to limit the memory the cache uses
+     */
+    public static void put(
+        @Nonnull Key key, @Nonnull URLConnection response, @CheckForNull Duration cacheDuration,
+        @Nonnull Element element, long sizeBytes
+    ) {
+        var freshness = getFreshness(response, cacheDuration);
+        if (freshness == null) return;
+
+        var etag = cacheDuration == null ? response.getHeaderField("ETag") : null;
+        if (etag == null && freshness.isZero()) return;
+
+        var timeToLive = etag == null ? freshness : freshness.plus(revalidationWindow);
+        getCache().put(key, new Entry(element, etag, freshness), sizeBytes, timeToLive);
+    }
+}
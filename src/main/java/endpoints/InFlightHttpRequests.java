@@ -0,0 +1,80 @@
+package endpoints;
+
+import endpoints.datasource.DataSourceCommand;
+import lombok.RequiredArgsConstructor;
+import org.w3c.dom.Element;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Identical requests made by &lt;xml-from-url&gt; at the same time, for example during a burst of requests to the same
+ * endpoint, share one request to the server and its parsed response.
+ *    <p>
+ * The first request is the "leader" and makes the request. Requests which are made while the leader is in flight
+ * are "followers", and wait for the leader's response. If the leader fails, the followers make their own requests,
+ * so that each request handles its own errors, for example according to its "ignore-if-error".
+ */
+public class InFlightHttpRequests {
+
+    @RequiredArgsConstructor
+    public static class Flight {
+        protected final @Nonnull HttpResponseCache.Key key;
+        protected final @Nonnull CompletableFuture<Element> response;
+        public final boolean leader;
+
+        /**
+         * Called by the leader.
+         * @param privateCopy the parsed response, not modified afterwards; or null if the request failed
+         */
+        public void complete(@CheckForNull Element privateCopy) {
+            inFlight.remove(key, response);
+            response.complete(privateCopy);
+        }
+
+        /**
+         * Called by followers.
+         * @return a copy of the leader's parsed response, or null if the leader failed or did not complete in time
+         */
+        public @CheckForNull Element await(@Nonnull Duration timeout) {
+            try {
+                var result = response.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+                if (result == null) return null;
+                coalescedCount.increment();
+                return DataSourceCommand.copy(result);
+            }
+            catch (TimeoutException e) { return null; }
+            catch (ExecutionException e) { throw new RuntimeException(e); }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    protected static final @Nonnull Map<HttpResponseCache.Key, CompletableFuture<Element>> inFlight =
+        new ConcurrentHashMap<>();
+    protected static final @Nonnull Metrics.Counter coalescedCount = Metrics.registerCounter(
+        "endpoints_http_coalesced_requests_total",
+        "Outgoing HTTP requests not made, as an identical request was in flight, whose response was used");
+
+    static {
+        Metrics.registerGauge("endpoints_http_in_flight_coalescable_requests",
+            "Outgoing HTTP requests currently in flight which identical requests may share", inFlight::size);
+    }
+
+    /** @return a flight, whose leader must call {@link Flight#complete(Element)} */
+    public static @Nonnull Flight join(@Nonnull HttpResponseCache.Key key) {
+        var response = new CompletableFuture<Element>();
+        var existing = inFlight.putIfAbsent(key, response);
+        if (existing == null) return new Flight(key, response, true);
+        else return new Flight(key, existing, false);
+    }
+}
@@ -1,32 +1,48 @@
 package endpoints;
 
-import org.slf4j.LoggerFactory;
-import org.json.JSONArray;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.json.JSONTokener;
-import org.json.XML;
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.xml.sax.SAXException;
 
 import javax.annotation.Nonnull;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.regex.Pattern;
-import java.util.stream.StreamSupport;
 
 import static com.databasesandlife.util.DomParser.newDocumentBuilder;
 import static java.nio.charset.StandardCharsets.UTF_8;
-import static java.util.stream.Collectors.toList;
-import static java.util.stream.Collectors.toMap;
 
+/**
+ * Converts JSON to XML, as the org.json library's XML.toString did, but building the DOM directly while the JSON
+ * is read, rather than building a JSON object tree, copying it, serializing it as XML and parsing that XML.
+ *    <p>
+ * The output is the same, except that elements appear in the order their keys appear in the JSON,
+ * rather than in the undefined order of the keys of a JSONObject. That is:
+ * <ul>
+ *     <li>Object keys become elements, with keys made safe as XML element names, see {@link #makeKeySafeForXml}.
+ *     <li>Arrays repeat the element of their key for each value. Arrays within arrays become &lt;array&gt; elements,
+ *         as do values of an array which is the whole JSON.
+ *     <li>The key "content" becomes text within the element of its object, with values of an array joined by newlines.
+ *     <li>Numbers are formatted as org.json formats them, and null becomes "null".
+ * </ul>
+ */
 public class JsonToXmlConverter {
 
     protected static final Pattern patternFirstChar = Pattern.compile("^[^a-z_]");
     protected static final Pattern patternNonFirstChar = Pattern.compile("[^a-z0-9-_.]");
-    
+    protected static final @Nonnull ObjectMapper objectMapper = new ObjectMapper()
+        // org.json accepted these
+        .enable(JsonParser.Feature.ALLOW_SINGLE_QUOTES, JsonParser.Feature.ALLOW_UNQUOTED_FIELD_NAMES,
+            JsonParser.Feature.ALLOW_COMMENTS)
+        // org.json rejected these
+        .enable(JsonParser.Feature.STRICT_DUPLICATE_DETECTION);
+
     protected @Nonnull String makeKeySafeForXml(@Nonnull Pattern pattern, @Nonnull String key) {
         var result = new StringBuilder();
         var matcher = pattern.matcher(key);
@@ -40,45 +56,118 @@ public class JsonToXmlConverter {
     }
 
     /**
-     * Alter JSON to have keys which are safe as XML element names.
      * JSON objects can have keys such as "foo bar" but XML elements cannot have keys such as &lt;foo bar&gt;.
      * The default JSON-to-XML converter simply converts JSON object keys to XML element names verbatim.
      */
-    protected @Nonnull Object makeKeysInJsonSafeForXml(@Nonnull Object input) {
-        if (input instanceof JSONObject) 
-            return new JSONObject(((JSONObject) input).keySet().stream().collect(toMap(
-                key -> makeKeySafeForXml(patternNonFirstChar, makeKeySafeForXml(patternFirstChar, key)),
-                key -> makeKeysInJsonSafeForXml(((JSONObject) input).opt(key))
-            )));
-        else if (input instanceof JSONArray) 
-            return new JSONArray(StreamSupport.stream(((JSONArray) input).spliterator(), false)
-                .map(e -> makeKeysInJsonSafeForXml(e))
-                .collect(toList()));
-        else return input;
+    protected @Nonnull String makeKeySafeForXml(@Nonnull String key) {
+        return makeKeySafeForXml(patternNonFirstChar, makeKeySafeForXml(patternFirstChar, key));
+    }
+
+    /** The DOM does not check this, but the XML could not be serialized and parsed again */
+    protected static @Nonnull String assertValidXmlText(@Nonnull String text) throws JSONException {
+        for (int i = 0; i < text.length(); i++) {
+            var c = text.charAt(i);
+            if (c < 0x20 && c != '\t' && c != '\n' && c != '\r' || c == 0xFFFE || c == 0xFFFF)
+                throw new JSONException("JSON string contains character U+" + String.format("%04X", (int) c) +
+                    ", which is not allowed in XML");
+        }
+        return text;
+    }
+
+    /** @param parser positioned at a scalar value */
+    protected @Nonnull String getScalarText(@Nonnull JsonParser parser) throws IOException {
+        switch (parser.currentToken()) {
+            case VALUE_STRING: return assertValidXmlText(parser.getText());
+            case VALUE_NUMBER_INT: case VALUE_NUMBER_FLOAT: return JSONObject.stringToValue(parser.getText()).toString();
+            default: return parser.getText(); // true, false, null
+        }
+    }
+
+    /** @param parser positioned at any value */
+    protected @Nonnull String getText(@Nonnull JsonParser parser) throws IOException {
+        if (parser.currentToken().isScalarValue()) return getScalarText(parser);
+        return assertValidXmlText(parser.readValueAsTree().toString()); // As org.json, JSON within XML
+    }
+
+    protected void appendElement(@Nonnull Element parent, @Nonnull String tagName, @Nonnull String text) {
+        var element = parent.getOwnerDocument().createElement(tagName);
+        if ( ! text.isEmpty()) element.appendChild(parent.getOwnerDocument().createTextNode(text));
+        parent.appendChild(element);
+    }
+
+    /** @param parser positioned at the START_OBJECT token, after which it is positioned at the END_OBJECT token */
+    protected void appendObject(@Nonnull JsonParser parser, @Nonnull Element parent) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var key = makeKeySafeForXml(parser.getCurrentName());
+            var token = parser.nextToken();
+
+            if (key.equals("content")) {
+                var text = new StringBuilder();
+                if (token == JsonToken.START_ARRAY) {
+                    for (int i = 0; parser.nextToken() != JsonToken.END_ARRAY; i++) {
+                        if (i > 0) text.append('\n');
+                        text.append(getText(parser));
+                    }
+                }
+                else text.append(getText(parser));
+                parent.appendChild(parent.getOwnerDocument().createTextNode(text.toString()));
+            }
+            else if (token == JsonToken.START_ARRAY) {
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    if (parser.currentToken() == JsonToken.START_ARRAY) {
+                        var element = parent.getOwnerDocument().createElement(key);
+                        parent.appendChild(element);
+                        appendValue(parser, element, "array");
+                    }
+                    else appendValue(parser, parent, key);
+                }
+            }
+            else appendValue(parser, parent, key);
+        }
+    }
+
+    /**
+     * Values of arrays are all appended with this tag name.
+     * @param parser positioned at any value, after which it is positioned at its last token
+     */
+    protected void appendValue(@Nonnull JsonParser parser, @Nonnull Element parent, @Nonnull String tagName)
+    throws IOException {
+        switch (parser.currentToken()) {
+            case START_OBJECT:
+                var element = parent.getOwnerDocument().createElement(tagName);
+                parent.appendChild(element);
+                appendObject(parser, element);
+                break;
+            case START_ARRAY:
+                while (parser.nextToken() != JsonToken.END_ARRAY) appendValue(parser, parent, tagName);
+                break;
+            default:
+                appendElement(parent, tagName, getScalarText(parser));
+        }
     }
-    
-    public @Nonnull Element convert(@Nonnull String contentType, @Nonnull InputStream jsonInputStream, @Nonnull String rootElement) 
+
+    public @Nonnull Element convert(@Nonnull String contentType, @Nonnull InputStream jsonInputStream, @Nonnull String rootElement)
     throws JSONException, IOException {
-        
-        @SuppressWarnings("UnstableApiUsage") 
+
+        @SuppressWarnings("UnstableApiUsage")
         var charset = com.google.common.net.MediaType.parse(contentType).charset().or(UTF_8);
-        
-        String xmlString;
-        try (var reader = new InputStreamReader(jsonInputStream, charset)) {
-            var jsonObject = new JSONTokener(reader).nextValue();
-            var jsonObjectWithSafeKeys = makeKeysInJsonSafeForXml(jsonObject);
-            xmlString = XML.toString(jsonObjectWithSafeKeys);
-        }
 
-        var xmlIncludingHeader = "<?xml version=\"1.0\" encoding=\"utf-8\"?><"+rootElement+">"
-            + xmlString + "</"+rootElement+">";
-        
-        try {
-            return newDocumentBuilder().parse(new ByteArrayInputStream(xmlIncludingHeader.getBytes(UTF_8))).getDocumentElement();
+        Document document = newDocumentBuilder().newDocument();
+        var root = document.createElement(rootElement);
+        document.appendChild(root);
+
+        try (var reader = new InputStreamReader(jsonInputStream, charset);
+             var parser = objectMapper.getFactory().createParser(reader)) {
+            var token = parser.nextToken();
+            if (token == null) throw new JSONException("A JSON text must begin with '{' or '['");
+            else if (token == JsonToken.START_OBJECT) appendObject(parser, root);
+            else if (token == JsonToken.START_ARRAY) appendValue(parser, root, "array");
+            else root.appendChild(document.createTextNode("\"" + getScalarText(parser) + "\""));
         }
-        catch (SAXException e) {
-            LoggerFactory.getLogger(getClass()).info("JSON converted to XML: " + xmlIncludingHeader);
+        catch (JsonProcessingException e) {
             throw new JSONException(e);
         }
-    } 
+
+        return root;
+    }
 }
@@ -0,0 +1,86 @@
+package endpoints;
+
+import lombok.RequiredArgsConstructor;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.function.Predicate;
+
+/**
+ * In-memory cache whose entries expire after a time, and which evicts the least-recently-used entries when it
+ * contains too many entries, or when the total "weight" (e.g. size in bytes) of the entries is too large.
+ *    <p>
+ * Hits and misses are counted in {@link Metrics} counters supplied by the user of the cache.
+ */
+public class LruCache<K, V> {
+
+    @RequiredArgsConstructor
+    protected static class Entry<V> {
+        protected final @Nonnull V value;
+        protected final long weight;
+        protected final @Nonnull Instant expiry;
+    }
+
+    protected final int maxEntries;
+    protected final long maxWeight;
+    protected final @Nonnull Metrics.Counter hits, misses;
+    protected final @Nonnull LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    protected long totalWeight = 0;
+
+    public LruCache(int maxEntries, long maxWeight, @Nonnull Metrics.Counter hits, @Nonnull Metrics.Counter misses) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.hits = hits;
+        this.misses = misses;
+    }
+
+    public synchronized @CheckForNull V get(@Nonnull K key) {
+        var entry = entries.get(key);
+        if (entry != null && entry.expiry.isBefore(Instant.now())) {
+            remove(key);
+            entry = null;
+        }
+
+        if (entry == null) { misses.increment(); return null; }
+        hits.increment();
+        return entry.value;
+    }
+
+    /** Values heavier than the maximum weight of the whole cache are not stored */
+    public synchronized void put(@Nonnull K key, @Nonnull V value, long weight, @Nonnull Duration timeToLive) {
+        remove(key);
+        if (weight > maxWeight) return;
+
+        entries.put(key, new Entry<>(value, weight, Instant.now().plus(timeToLive)));
+        totalWeight += weight;
+
+        var iterator = entries.values().iterator();
+        while (entries.size() > maxEntries || totalWeight > maxWeight) {
+            totalWeight -= iterator.next().weight;
+            iterator.remove();
+        }
+    }
+
+    public synchronized void remove(@Nonnull K key) {
+        var removed = entries.remove(key);
+        if (removed != null) totalWeight -= removed.weight;
+    }
+
+    public synchronized void removeIf(@Nonnull Predicate<K> predicate) {
+        var iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            var e = iterator.next();
+            if (predicate.test(e.getKey())) {
+                totalWeight -= e.getValue().weight;
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,78 @@
+package endpoints;
+
+import lombok.RequiredArgsConstructor;
+
+import javax.annotation.Nonnull;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Registry of metrics such as connection pool sizes or cache hit counts, published by {@link MetricsServlet}.
+ *    <p>
+ * Metric names follow the Prometheus conventions, and may contain labels, e.g. 
+ * <code>endpoints_database_pool_active_connections{pool="main"}</code>.
+ * Registering a metric with a name which is already registered replaces the previous metric.
+ */
+public class Metrics {
+
+    public enum MetricType { counter, gauge }
+
+    @RequiredArgsConstructor
+    protected static class Metric {
+        protected final @Nonnull MetricType type;
+        protected final @Nonnull String help;
+        protected final @Nonnull Supplier<Number> value;
+    }
+
+    public static class Counter {
+        protected final @Nonnull AtomicLong value = new AtomicLong();
+        public void increment() { value.incrementAndGet(); }
+        public void add(long delta) { value.addAndGet(delta); }
+        public long get() { return value.get(); }
+    }
+
+    /** Sorted, so that metrics with the same name but different labels are adjacent */
+    protected static final @Nonnull Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+    public static void registerGauge(@Nonnull String name, @Nonnull String help, @Nonnull Supplier<Number> value) {
+        metrics.put(name, new Metric(MetricType.gauge, help, value));
+    }
+
+    /** For counters whose values are maintained elsewhere, e.g. by a library */
+    public static void registerCounter(@Nonnull String name, @Nonnull String help, @Nonnull Supplier<Number> value) {
+        metrics.put(name, new Metric(MetricType.counter, help, value));
+    }
+
+    public static @Nonnull Counter registerCounter(@Nonnull String name, @Nonnull String help) {
+        var result = new Counter();
+        registerCounter(name, help, result::get);
+        return result;
+    }
+
+    /** Removes all metrics whose names, excluding labels, start with this prefix, and whose labels contain this string */
+    public static void unregister(@Nonnull String namePrefix, @Nonnull String labels) {
+        metrics.keySet().removeIf(name -> name.startsWith(namePrefix) && name.contains(labels));
+    }
+
+    protected static @Nonnull String getNameWithoutLabels(@Nonnull String name) {
+        var brace = name.indexOf('{');
+        return brace == -1 ? name : name.substring(0, brace);
+    }
+
+    /** Writes metrics in the Prometheus text exposition format */
+    public static void write(@Nonnull PrintWriter out) {
+        String previousName = null;
+        for (var e : metrics.entrySet()) {
+            var name = getNameWithoutLabels(e.getKey());
+            if ( ! name.equals(previousName)) {
+                out.print("# HELP " + name + " " + e.getValue().help + "\n");
+                out.print("# TYPE " + name + " " + e.getValue().type.name() + "\n");
+                previousName = name;
+            }
+            out.print(e.getKey() + " " + e.getValue().value.get() + "\n");
+        }
+    }
+}
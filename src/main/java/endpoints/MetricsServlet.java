@@ -0,0 +1,37 @@
+package endpoints;
+
+import javax.annotation.Nonnull;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Optional;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Publishes {@link Metrics} in a format which can be scraped by Prometheus.
+ * Only published if ENDPOINTS_METRICS_SECRET is set, and only to clients which send it as a "bearer token".
+ */
+public class MetricsServlet extends HttpServlet {
+
+    @Override protected void doGet(@Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp)
+    throws IOException {
+        var secret = DeploymentParameters.get().metricsSecret;
+        if (secret == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Metrics are not published, as ENDPOINTS_METRICS_SECRET is not set");
+            return;
+        }
+
+        var supplied = Optional.ofNullable(req.getHeader("Authorization")).orElse("");
+        if ( ! MessageDigest.isEqual(("Bearer " + secret).getBytes(UTF_8), supplied.getBytes(UTF_8))) {
+            resp.setHeader("WWW-Authenticate", "Bearer");
+            resp.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Header 'Authorization: Bearer <ENDPOINTS_METRICS_SECRET>' required");
+            return;
+        }
+
+        resp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        Metrics.write(resp.getWriter());
+    }
+}
@@ -10,9 +10,11 @@ import org.jooq.Field;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import java.time.*;
+import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.Arrays;
 import java.util.Map;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
 import static endpoints.generated.jooq.Tables.*;
@@ -29,6 +31,7 @@ public class OnDemandIncrementingNumber {
         perpetual {
             public @Override @Nonnull Field<Integer> getRequestLogIdsField() { return REQUEST_LOG_IDS.ON_DEMAND_PERPETUAL_INCREMENTING_NUMBER; }
             public @Override @Nonnull Condition getRequestLogCondition(Instant now, ZoneId timezone) { return trueCondition(); }
+            public @Override @Nonnull String getPeriod(@Nonnull Instant now, @Nonnull ZoneId timezone) { return ""; }
         },
         year {
             public @Override @Nonnull Field<Integer> getRequestLogIdsField() { return REQUEST_LOG_IDS.ON_DEMAND_YEAR_INCREMENTING_NUMBER; }
@@ -38,6 +41,9 @@ public class OnDemandIncrementingNumber {
                 return REQUEST_LOG.DATETIME.ge(startLocal.atZone(timezone).toInstant())
                     .and(REQUEST_LOG.DATETIME.lt(startLocal.plus(1, ChronoUnit.YEARS).atZone(timezone).toInstant())); 
             }
+            public @Override @Nonnull String getPeriod(@Nonnull Instant now, @Nonnull ZoneId timezone) {
+                return DateTimeFormatter.ofPattern("yyyy").format(now.atZone(timezone));
+            }
         },
         month {
             public @Override @Nonnull Field<Integer> getRequestLogIdsField() { return REQUEST_LOG_IDS.ON_DEMAND_MONTH_INCREMENTING_NUMBER; }
@@ -47,10 +53,18 @@ public class OnDemandIncrementingNumber {
                 return REQUEST_LOG.DATETIME.ge(startLocal.atZone(timezone).toInstant())
                     .and(REQUEST_LOG.DATETIME.lt(startLocal.plus(1, ChronoUnit.MONTHS).atZone(timezone).toInstant()));
             }
+            public @Override @Nonnull String getPeriod(@Nonnull Instant now, @Nonnull ZoneId timezone) {
+                return DateTimeFormatter.ofPattern("yyyy-MM").format(now.atZone(timezone));
+            }
         };
 
         public abstract @Nonnull Field<Integer> getRequestLogIdsField();
+        
+        /** @return which request logs are in the same period as "now" */
         public abstract @Nonnull Condition getRequestLogCondition(@Nonnull Instant now, @Nonnull ZoneId timezone);
+
+        /** @return key of the counter which is incremented, e.g. "2019" or "2019-01" */
+        public abstract @Nonnull String getPeriod(@Nonnull Instant now, @Nonnull ZoneId timezone);
     }
 
     protected final @Nonnull ApplicationName application;
@@ -58,24 +72,59 @@ public class OnDemandIncrementingNumber {
     protected final @Nonnull OnDemandIncrementingNumberType type;
     protected final @Nonnull Instant now;
     
+    /** 
+     * In "lock-free execution" mode, the counter is incremented in a short transaction of its own, as concurrent
+     * requests incrementing the same counter in their own transactions would fail with serialization errors.
+     */
+    protected boolean separateTransaction = false;
+    
     protected @CheckForNull Integer value;
     
     public @CheckForNull Integer getValueOrNull() { return value; }
     
+    /**
+     * A counter is created the first time it is used in each period. It continues from the numbers in the request log
+     * of that period, e.g. numbers allocated before counters existed, which the migration did not count as it does not
+     * know the timezone of applications in single application mode.
+     */
+    protected int incrementCounter(@Nonnull DbTransaction tx, @Nonnull ZoneId timezone) {
+        var period = type.getPeriod(now, timezone);
+        var counterExists = tx.jooq().fetchExists(ON_DEMAND_INCREMENTING_NUMBER_COUNTER, 
+            ON_DEMAND_INCREMENTING_NUMBER_COUNTER.APPLICATION.eq(application)
+                .and(ON_DEMAND_INCREMENTING_NUMBER_COUNTER.ENVIRONMENT.eq(environment))
+                .and(ON_DEMAND_INCREMENTING_NUMBER_COUNTER.TYPE.eq(type.name()))
+                .and(ON_DEMAND_INCREMENTING_NUMBER_COUNTER.PERIOD.eq(period)));
+        var initialValue = counterExists ? 1 : 1 + Optional.ofNullable(tx.jooq()
+            .select(max(type.getRequestLogIdsField()))
+            .from(REQUEST_LOG_IDS)
+            .join(REQUEST_LOG).on(REQUEST_LOG.REQUEST_ID.eq(REQUEST_LOG_IDS.REQUEST_ID))
+            .where(REQUEST_LOG_IDS.APPLICATION.eq(application))
+            .and(REQUEST_LOG_IDS.ENVIRONMENT.eq(environment))
+            .and(type.getRequestLogCondition(now, timezone))
+            .fetchOne().value1()).orElse(0);
+        
+        return tx.jooq()
+            .insertInto(ON_DEMAND_INCREMENTING_NUMBER_COUNTER)
+            .set(ON_DEMAND_INCREMENTING_NUMBER_COUNTER.APPLICATION, application)
+            .set(ON_DEMAND_INCREMENTING_NUMBER_COUNTER.ENVIRONMENT, environment)
+            .set(ON_DEMAND_INCREMENTING_NUMBER_COUNTER.TYPE, type.name())
+            .set(ON_DEMAND_INCREMENTING_NUMBER_COUNTER.PERIOD, period)
+            .set(ON_DEMAND_INCREMENTING_NUMBER_COUNTER.LAST_VALUE, initialValue)
+            .onDuplicateKeyUpdate()
+            .set(ON_DEMAND_INCREMENTING_NUMBER_COUNTER.LAST_VALUE, ON_DEMAND_INCREMENTING_NUMBER_COUNTER.LAST_VALUE.plus(1))
+            .returning(ON_DEMAND_INCREMENTING_NUMBER_COUNTER.LAST_VALUE)
+            .fetchOne().getLastValue();
+    }
+    
+    /**
+     * Increments the counter for the current period. The counter row remains locked until the transaction
+     * completes, so if the transaction is rolled back, the number is not consumed.
+     * If {@link #separateTransaction} is set, the number is consumed even if the transaction is rolled back.
+     */
     @SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter") 
     public int getOrFetchValue(@Nonnull DbTransaction tx) {
         synchronized (tx) {
             if (value == null) {
-                try (var ignored = new Timer("Acquire lock on '" + application.name
-                        + "', environment '" + environment.name() + "'")) {
-                    tx.jooq()
-                        .selectFrom(APPLICATION_PUBLISH)
-                        .where(APPLICATION_PUBLISH.APPLICATION_NAME.eq(application))
-                        .and(APPLICATION_PUBLISH.ENVIRONMENT.eq(environment))
-                        .forUpdate()
-                        .execute();
-                }
-
                 var timezone = tx.jooq()
                     .select(APPLICATION_CONFIG.TIMEZONE)
                     .from(APPLICATION_CONFIG)
@@ -84,27 +133,33 @@ public class OnDemandIncrementingNumber {
                 if (timezone == null) throw new RuntimeException("Unreachable: " +
                     "Neither 'application_config' row is present, nor is environment variable set");
 
-                var max = tx.jooq()
-                    .select(max(type.getRequestLogIdsField()))
-                    .from(REQUEST_LOG_IDS)
-                    .join(REQUEST_LOG).on(REQUEST_LOG.REQUEST_ID.eq(REQUEST_LOG_IDS.REQUEST_ID))
-                    .where(REQUEST_LOG_IDS.APPLICATION.eq(application))
-                    .and(REQUEST_LOG_IDS.ENVIRONMENT.eq(environment))
-                    .and(type.getRequestLogCondition(now, timezone))
-                    .fetchOne().value1();
-
-                if (max == null) value = 1;
-                else value = max + 1;
+                try (var ignored = new Timer("Increment " + type.name() + " on-demand incrementing number for '" 
+                        + application.name + "', environment '" + environment.name() + "'")) {
+                    if (separateTransaction) {
+                        try (var counterTx = DeploymentParameters.get().newDbTransaction()) {
+                            // Concurrent upserts of the same counter row wait for each other, rather than failing
+                            counterTx.execute("SET TRANSACTION ISOLATION LEVEL READ COMMITTED");
+                            value = incrementCounter(counterTx, timezone);
+                            counterTx.commit();
+                        }
+                    }
+                    else value = incrementCounter(tx, timezone);
+                }
             }
 
             return value;
         }
     }
     
+    /** @param separateTransaction see {@link #separateTransaction} */
     public static @Nonnull Map<OnDemandIncrementingNumberType, OnDemandIncrementingNumber> newLazyNumbers(
-        @Nonnull ApplicationName application, @Nonnull PublishEnvironment environment, @Nonnull Instant now
+        @Nonnull ApplicationName application, @Nonnull PublishEnvironment environment, @Nonnull Instant now,
+        boolean separateTransaction
     ) {
-        return Arrays.stream(OnDemandIncrementingNumberType.values()).collect(Collectors.toMap(t -> t, 
-            t ->new OnDemandIncrementingNumber(application, environment, t, now)));
+        return Arrays.stream(OnDemandIncrementingNumberType.values()).collect(Collectors.toMap(t -> t, t -> {
+            var result = new OnDemandIncrementingNumber(application, environment, t, now);
+            result.separateTransaction = separateTransaction;
+            return result;
+        }));
     }
 }
@@ -47,6 +47,9 @@ public class PublishProcess {
             .onDuplicateKeyUpdate()
             .set(APPLICATION_PUBLISH.REVISION, revision)
             .execute();
+
+        // Sent when the transaction commits, so each server loads the new revision, see PublishedApplicationFactory
+        tx.execute("NOTIFY " + PublishedApplicationFactory.publishNotificationChannel);
     }
 
     public @Nonnull GitRevision publish(@Nonnull DbTransaction tx, @Nonnull PublishLogger log) throws ApplicationInvalidException {
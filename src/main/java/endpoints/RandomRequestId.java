@@ -8,7 +8,7 @@ import javax.annotation.Nonnull;
 
 import java.io.Serializable;
 
-import static endpoints.generated.jooq.Tables.REQUEST_LOG_IDS;
+import static endpoints.generated.jooq.Tables.RANDOM_ID_PER_APPLICATION;
 import static org.apache.commons.lang.RandomStringUtils.random;
 import static org.apache.commons.lang.RandomStringUtils.randomNumeric;
 
@@ -18,7 +18,9 @@ public class RandomRequestId implements Serializable {
     long id;
 
     /**
-     * Note: Assumes application is "locked" i.e. only one instance of this code is running at once
+     * Reserves a new random ID by inserting it into the table of used IDs, whose primary key guarantees uniqueness.
+     * Usually only one attempt, i.e. one round trip to the database, is required. 
+     * If the transaction is rolled back, the ID is not consumed.
      */
     protected static @Nonnull RandomRequestId generate(
         @Nonnull DbTransaction tx,
@@ -28,14 +30,14 @@ public class RandomRequestId implements Serializable {
             // 10 digits, starting with a non-zero so it is always 10 characters long
             var candidate = new RandomRequestId(Long.parseLong(random(1, "123456789") + randomNumeric(9)));
 
-            var existingCount = tx.jooq()
-                .selectCount()
-                .from(REQUEST_LOG_IDS)
-                .where(REQUEST_LOG_IDS.APPLICATION.eq(applicationName))
-                .and(REQUEST_LOG_IDS.ENVIRONMENT.eq(environment))
-                .and(REQUEST_LOG_IDS.RANDOM_ID_PER_APPLICATION.eq(candidate))
-                .fetchOne().value1();
-            if (existingCount == 0) return candidate;
+            var insertedCount = tx.jooq()
+                .insertInto(RANDOM_ID_PER_APPLICATION)
+                .set(RANDOM_ID_PER_APPLICATION.APPLICATION, applicationName)
+                .set(RANDOM_ID_PER_APPLICATION.ENVIRONMENT, environment)
+                .set(RANDOM_ID_PER_APPLICATION.RANDOM_ID, candidate)
+                .onConflictDoNothing()
+                .execute();
+            if (insertedCount == 1) return candidate;
         }
 
         throw new RuntimeException("Cannot find new random number");
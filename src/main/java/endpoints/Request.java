@@ -19,6 +19,9 @@ import java.util.Map;
  */
 public interface Request {
     
+    /** For example "GET" or "POST" */
+    @Nonnull String getHttpMethod();
+
     @CheckForNull InetAddress getClientIpAddress();
     
     /** @return Keys are lowercase (as HTTP headers are case-insensitive) */
@@ -39,6 +42,7 @@ public interface Request {
     
     public static @Nonnull Request newForTesting() {
         return new Request() {
+            @Override public String getHttpMethod() { return "GET"; }
             @Override public InetAddress getClientIpAddress() { return null; }
             @Override public Map<String, List<String>> getLowercaseHttpHeadersWithoutCookies() { return Map.of(); }
             @Override public List<Cookie> getCookies() { return List.of(); }
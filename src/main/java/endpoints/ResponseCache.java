@@ -0,0 +1,72 @@
+package endpoints;
+
+import com.offerready.xslt.BufferedHttpResponseDocumentGenerationDestination;
+import endpoints.config.ApplicationName;
+import endpoints.config.Endpoint;
+import endpoints.config.ParameterName;
+import lombok.Value;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.time.Duration;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Caches the responses of endpoints which have a &lt;cache&gt; element, see "endpoints.lyx".
+ *    <p>
+ * The key contains the {@link Endpoint} object, which is specific to the revision of the application which was loaded,
+ * so responses from a previous revision are never delivered. In addition, when a new revision is loaded,
+ * {@link #invalidate(ApplicationName, PublishEnvironment)} frees the memory of the previous revision's responses.
+ */
+public class ResponseCache {
+
+    @Value
+    public static class Key {
+        @Nonnull ApplicationName application;
+        @Nonnull PublishEnvironment environment;
+        /** Compared by identity */
+        @Nonnull Endpoint endpoint;
+        @Nonnull SortedMap<ParameterName, String> parameters;
+    }
+
+    protected static final @Nonnull Metrics.Counter hits = Metrics.registerCounter(
+        "endpoints_response_cache_hits_total", "Endpoint responses delivered from cache");
+    protected static final @Nonnull Metrics.Counter misses = Metrics.registerCounter(
+        "endpoints_response_cache_misses_total", "Endpoint responses with <cache> which were not found in cache");
+    protected static @CheckForNull LruCache<Key, BufferedHttpResponseDocumentGenerationDestination> cache = null;
+
+    protected static synchronized @Nonnull LruCache<Key, BufferedHttpResponseDocumentGenerationDestination> getCache() {
+        if (cache == null) {
+            cache = new LruCache<>(10_000, DeploymentParameters.get().responseCacheMaxBytes, hits, misses);
+            var c = cache;
+            Metrics.registerGauge("endpoints_response_cache_entries", "Endpoint responses currently cached", c::size);
+        }
+        return cache;
+    }
+
+    public static @Nonnull Key newKey(
+        @Nonnull ApplicationName application, @Nonnull PublishEnvironment environment, @Nonnull Endpoint endpoint, 
+        @Nonnull Map<ParameterName, String> parameters
+    ) {
+        return new Key(application, environment, endpoint, new TreeMap<>(parameters));
+    }
+
+    public static @CheckForNull BufferedHttpResponseDocumentGenerationDestination get(@Nonnull Key key) {
+        return getCache().get(key);
+    }
+
+    /** Only successful responses are cached */
+    public static void put(
+        @Nonnull Key key, @Nonnull BufferedHttpResponseDocumentGenerationDestination response, @Nonnull Duration timeToLive
+    ) {
+        if (response.getStatusCode() != 200) return;
+        if (response instanceof StreamingHttpResponseDestination) return; // body not available
+        getCache().put(key, response, response.getBody().size(), timeToLive);
+    }
+
+    public static void invalidate(@Nonnull ApplicationName application, @Nonnull PublishEnvironment environment) {
+        getCache().removeIf(k -> k.application.equals(application) && k.environment == environment);
+    }
+}
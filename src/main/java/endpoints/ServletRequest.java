@@ -1,9 +1,9 @@
 package endpoints;
 
 import com.databasesandlife.util.servlet.IpAddressDeterminer;
-import endpoints.EndpointExecutor.EndpointExecutionFailedException;
+import endpoints.EndpointExecutorServlet.ServletUploadedFile;
 import endpoints.config.ParameterName;
-import lombok.RequiredArgsConstructor;
+import lombok.Getter;
 import lombok.SneakyThrows;
 
 import javax.annotation.CheckForNull;
@@ -11,71 +11,112 @@ import javax.annotation.Nonnull;
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
 import java.util.*;
 
-import static java.util.Arrays.asList;
 import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toMap;
 
 /**
  * Represents a HTTP request in the form of a {@link Request} which can be processed by {@link EndpointExecutor}.
+ *    <p>
+ * Everything is read from the servlet request when this object is created, on the container thread.
+ * The request is then processed on another thread, and may time out, after which the container may reuse the servlet
+ * request, so it must not be accessed after that.
  */
-@RequiredArgsConstructor
 public class ServletRequest implements Request {
     
-    protected final @Nonnull HttpServletRequest req;
+    protected final @Nonnull String httpMethod;
+    /** Within the context, e.g. "/application/endpoint" */
+    protected final @Getter @Nonnull String path;
+    protected final @CheckForNull InetAddress clientIpAddress;
+    protected final @Nonnull Map<String, List<String>> lowercaseHttpHeadersWithoutCookies;
+    protected final @Nonnull List<Cookie> cookies;
+    protected final @Nonnull String userAgent;
+    protected final @CheckForNull String contentType;
+    /** Including "debug" */
+    protected final @Nonnull Map<String, List<String>> allParameters;
+    protected final @Nonnull List<ServletUploadedFile> uploadedFiles;
+    /** Only XML and JSON bodies are read, other bodies are read by the container as form parameters */
+    protected final @Nonnull byte[] body;
 
-    @Override public @CheckForNull InetAddress getClientIpAddress() {
-        return new IpAddressDeterminer().getRequestIpAddress(req);
-    }
-
-    @Override public @Nonnull Map<String, List<String>> getLowercaseHttpHeadersWithoutCookies() {
-        var result = new HashMap<String, List<String>>();
+    @SneakyThrows(ServletException.class)
+    public ServletRequest(@Nonnull HttpServletRequest req) throws IOException {
+        httpMethod = req.getMethod();
+        path = req.getRequestURI().substring(req.getContextPath().length());
+        clientIpAddress = new IpAddressDeterminer().getRequestIpAddress(req);
+        
+        lowercaseHttpHeadersWithoutCookies = new HashMap<>();
         for (var e = req.getHeaderNames(); e.hasMoreElements(); ) {
             var name = e.nextElement().toLowerCase();
             if (name.equals("cookie")) continue;
             var values = new ArrayList<String>();
             for (var v = req.getHeaders(name); v.hasMoreElements(); ) values.add(v.nextElement());
-            result.put(name, values);
+            lowercaseHttpHeadersWithoutCookies.put(name, values);
         }
-        return result;
+        
+        cookies = req.getCookies() == null ? List.of() : List.of(req.getCookies());
+        userAgent = Optional.ofNullable(req.getHeader("User-Agent")).orElse("");
+        contentType = req.getContentType();
+        allParameters = req.getParameterMap().entrySet().stream()
+            .collect(toMap(e -> e.getKey(), e -> List.of(e.getValue())));
+        uploadedFiles = Optional.ofNullable(contentType).orElse("").startsWith("multipart/form-data")
+            ? req.getParts().stream().filter(p -> p.getContentType() != null).map(ServletUploadedFile::new).collect(toList())
+            : List.of();
+        
+        var bodyType = Optional.ofNullable(contentType).orElse("");
+        body = bodyType.contains("xml") || bodyType.contains("json") ? req.getInputStream().readAllBytes() : new byte[0];
+    }
+
+    /** @return the value of the parameter, including "debug", or the first value if it has multiple values */
+    public @CheckForNull String getParameter(@Nonnull String name) {
+        var values = allParameters.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    @Override public @Nonnull String getHttpMethod() {
+        return httpMethod;
+    }
+
+    @Override public @CheckForNull InetAddress getClientIpAddress() {
+        return clientIpAddress;
+    }
+
+    @Override public @Nonnull Map<String, List<String>> getLowercaseHttpHeadersWithoutCookies() {
+        return lowercaseHttpHeadersWithoutCookies;
     }
 
     @Override public @Nonnull List<Cookie> getCookies() {
-        return asList(req.getCookies());
+        return cookies;
     }
 
     @Override public @Nonnull String getUserAgent() {
-        return Optional.ofNullable(req.getHeader("User-Agent")).orElse("");
+        return userAgent;
     }
     
     @Override public @CheckForNull String getContentTypeIfPost() {
-        return Optional.ofNullable(req.getContentType())
+        return Optional.ofNullable(contentType)
             .map(x -> x.replaceAll(";.*$", ""))
             .orElse(null);
     }
     
     @Override public @Nonnull Map<ParameterName, List<String>> getParameters() {
-        return req.getParameterMap().entrySet().stream()
+        return allParameters.entrySet().stream()
             .filter(e -> ! e.getKey().equalsIgnoreCase("debug"))
             .collect(toMap(
                 e -> new ParameterName(e.getKey()),
-                e -> List.of(e.getValue())
+                e -> e.getValue()
             ));
     }
     
-    @SneakyThrows({ServletException.class, IOException.class})
-    @Override public @Nonnull List<UploadedFile> getUploadedFiles() {
-        return Optional.ofNullable(req.getContentType()).orElse("").startsWith("multipart/form-data")
-            ? req.getParts().stream().filter(p -> p.getContentType() != null).map(EndpointExecutorServlet.ServletUploadedFile::new).collect(toList())
-            : List.of();
+    @Override public @Nonnull List<? extends UploadedFile> getUploadedFiles() {
+        return uploadedFiles;
     }
     
-    @Override public @Nonnull InputStream getInputStream() throws EndpointExecutionFailedException {
-        try { return req.getInputStream(); }
-        catch (IOException e) { throw new EndpointExecutionFailedException(400, "I/O problem reading request", e); }
+    @Override public @Nonnull InputStream getInputStream() {
+        return new ByteArrayInputStream(body);
     }
 }
@@ -0,0 +1,144 @@
+package endpoints;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Executes the tasks of one request, on threads shared by all requests, rather than creating threads for each request.
+ *    <p>
+ * This has the same methods as java-common's ThreadPool, which this replaces for request execution.
+ * Tasks execute on a fixed number of threads shared by all requests (ENDPOINTS_REQUEST_THREAD_COUNT),
+ * as they are CPU-bound work such as XSLT. "Off pool" tasks, which wait for HTTP requests and database queries,
+ * execute on other threads, which are virtual threads if enabled, as their number is limited by {@link ExecutionLimits}.
+ *    <p>
+ * A task may depend on tasks which have not yet been added, for example a {@link com.databasesandlife.util.ThreadPool.SynchronizationPoint}
+ * which a task adds once its work is complete. {@link #execute()} waits until all tasks, including those added
+ * by other tasks, have completed. If a task throws an exception, no further tasks are started, and once the running tasks
+ * have completed, {@link #execute()} throws it.
+ */
+public class SharedThreadPool {
+
+    protected static final @Nonnull AtomicInteger activeTasks = new AtomicInteger(), activeOffPoolTasks = new AtomicInteger();
+    protected static final @Nonnull ThreadPoolExecutor threads = newThreads();
+    protected static final @Nonnull ExecutorService offPoolThreads = VirtualThreads.isEnabled()
+        ? VirtualThreads.newBlockingIoExecutor("endpoints-off-pool-task", 1)
+        : Executors.newCachedThreadPool(VirtualThreads.newThreadFactory("endpoints-off-pool-task"));
+
+    protected static class ScheduledTask {
+        final @Nonnull Runnable task;
+        final @Nonnull Set<Runnable> remainingDependencies = Collections.newSetFromMap(new IdentityHashMap<>());
+        final boolean offPool;
+
+        ScheduledTask(@Nonnull Runnable task, @Nonnull Collection<? extends Runnable> dependencies, boolean offPool) {
+            this.task = task;
+            this.remainingDependencies.addAll(dependencies);
+            this.offPool = offPool;
+        }
+    }
+
+    protected final @Nonnull Set<Runnable> completed = Collections.newSetFromMap(new IdentityHashMap<>());
+    protected final @Nonnull List<ScheduledTask> waiting = new ArrayList<>();
+    protected boolean executing = false;
+    protected int running = 0;
+    protected @CheckForNull Throwable failure = null;
+
+    protected static @Nonnull ThreadPoolExecutor newThreads() {
+        var count = DeploymentParameters.get().requestThreadCount;
+        var result = new ThreadPoolExecutor(count, count, 0, MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+            var thread = new Thread(r, "endpoints-task");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Metrics.registerGauge("endpoints_tasks_active", "Tasks of requests currently executing", activeTasks::get);
+        Metrics.registerGauge("endpoints_tasks_queued", "Tasks of requests waiting for a thread", () -> result.getQueue().size());
+        Metrics.registerGauge("endpoints_off_pool_tasks_active",
+            "Tasks of requests currently executing, which wait for HTTP requests or database queries", activeOffPoolTasks::get);
+        return result;
+    }
+
+    public @Nonnull <T extends Runnable> T addTask(@Nonnull T task) {
+        return addTaskWithDependencies(List.of(), task);
+    }
+
+    public @Nonnull <T extends Runnable> T addTaskWithDependencies(@Nonnull Collection<? extends Runnable> dependencies, @Nonnull T task) {
+        schedule(new ScheduledTask(task, dependencies, false));
+        return task;
+    }
+
+    /** For tasks which wait for I/O, so should not occupy one of the limited number of threads */
+    public @Nonnull <T extends Runnable> T addTaskOffPool(@Nonnull T task) {
+        return addTaskWithDependenciesOffPool(List.of(), task);
+    }
+
+    public @Nonnull <T extends Runnable> T addTaskWithDependenciesOffPool(
+        @Nonnull Collection<? extends Runnable> dependencies, @Nonnull T task
+    ) {
+        schedule(new ScheduledTask(task, dependencies, true));
+        return task;
+    }
+
+    protected synchronized void schedule(@Nonnull ScheduledTask task) {
+        task.remainingDependencies.removeAll(completed);
+        waiting.add(task);
+        startTasksWithoutDependencies();
+    }
+
+    protected synchronized void startTasksWithoutDependencies() {
+        if ( ! executing || failure != null) return;
+        for (var i = waiting.iterator(); i.hasNext(); ) {
+            var t = i.next();
+            if ( ! t.remainingDependencies.isEmpty()) continue;
+            i.remove();
+            running++;
+            if (t.offPool) offPoolThreads.execute(() -> run(t, activeOffPoolTasks));
+            else threads.execute(() -> run(t, activeTasks));
+        }
+    }
+
+    protected void run(@Nonnull ScheduledTask t, @Nonnull AtomicInteger active) {
+        Throwable thrown = null;
+        active.incrementAndGet();
+        try { t.task.run(); }
+        catch (Throwable e) { thrown = e; }
+        finally { active.decrementAndGet(); }
+
+        synchronized (this) {
+            running--;
+            completed.add(t.task);
+            for (var w : waiting) w.remainingDependencies.remove(t.task);
+            if (thrown != null && failure == null) failure = thrown;
+            startTasksWithoutDependencies();
+            notifyAll();
+        }
+    }
+
+    /** Blocks until all tasks have completed */
+    public synchronized void execute() {
+        executing = true;
+        startTasksWithoutDependencies();
+
+        while (running > 0) {
+            try { wait(); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); throw new RuntimeException(e); }
+        }
+
+        if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+        if (failure instanceof Error) throw (Error) failure;
+        if (failure != null) throw new RuntimeException(failure);
+        if ( ! waiting.isEmpty()) throw new IllegalStateException(
+            waiting.size() + " task(s) were never executed, as tasks they depend on were never added");
+    }
+}
@@ -0,0 +1,47 @@
+package endpoints;
+
+import com.offerready.xslt.BufferedHttpResponseDocumentGenerationDestination;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+
+import javax.annotation.Nonnull;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the response body directly to the client while it is being generated, rather than buffering it in memory.
+ *    <p>
+ * The status code and headers are sent when the body is first written, so they must be set before that.
+ * The status code is also recorded as normal, so that it can be written to the request log.
+ * The body of this object is always empty, so it cannot be cached.
+ */
+@RequiredArgsConstructor
+public class StreamingHttpResponseDestination extends BufferedHttpResponseDocumentGenerationDestination {
+
+    protected final @Nonnull HttpServletResponse response;
+
+    @Override public void setStatusCode(int statusCode) {
+        super.setStatusCode(statusCode);
+        response.setStatus(statusCode);
+    }
+
+    @Override public void setContentType(@Nonnull String contentType) {
+        super.setContentType(contentType);
+        response.setContentType(contentType);
+    }
+
+    @Override public void setContentDispositionToDownload(@Nonnull String filename) {
+        super.setContentDispositionToDownload(filename);
+        response.setHeader("Content-Disposition", "attachment; filename=\"" + filename.replace("\"", "") + "\"");
+    }
+
+    /** No content length is known in advance, so the servlet container sends the body with chunked encoding */
+    @SneakyThrows(IOException.class)
+    @Override public @Nonnull OutputStream getOutputStream() {
+        return response.getOutputStream();
+    }
+
+    /** The response has already been written */
+    @Override public void deliver(@Nonnull HttpServletResponse resp) { }
+}
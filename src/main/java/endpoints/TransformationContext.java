@@ -1,13 +1,16 @@
 package endpoints;
 
-import com.databasesandlife.util.ThreadPool;
 import com.offerready.xslt.BufferedDocumentGenerationDestination;
 import endpoints.config.*;
 import endpoints.datasource.TransformationFailedException;
 import lombok.RequiredArgsConstructor;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.*;
+import java.util.function.BooleanSupplier;
 import java.util.stream.Collectors;
 
 import static java.util.Collections.synchronizedMap;
@@ -31,7 +34,7 @@ public class TransformationContext {
     public final @Nonnull ApplicationName applicationName;
     public final @Nonnull Application application;
     public final @Nonnull ApplicationTransaction tx;
-    public final @Nonnull ThreadPool threads;
+    public final @Nonnull SharedThreadPool threads;
     private final @Nonnull Map<ParameterName, String> params;
     public final @Nonnull ParameterNotFoundPolicy parameterNotFoundPolicy;
     public final @Nonnull Map<IntermediateValueName, String> intermediateValues = synchronizedMap(new HashMap<>());
@@ -39,6 +42,15 @@ public class TransformationContext {
     public final @Nonnull Request request;
     public final @Nonnull Map<OnDemandIncrementingNumber.OnDemandIncrementingNumberType, OnDemandIncrementingNumber> autoInc;
     public boolean alreadyDeliveredResponse = false;
+    /** Null if the endpoint has no timeout */
+    public @CheckForNull Instant deadline = null;
+    /** Whether the client has already been sent a timeout error, see {@link EndpointExecutor.Responder#isTimedOut()} */
+    public @Nonnull BooleanSupplier requestTimedOut = () -> false;
+
+    public static class DeadlineExceededException extends Exception {
+        public DeadlineExceededException() { super("Endpoint timeout exceeded"); }
+        public DeadlineExceededException(@Nonnull String msg) { super(msg); }
+    }
 
     public static class TransformerExecutor implements Runnable {
         public final @Nonnull BufferedDocumentGenerationDestination result = new BufferedDocumentGenerationDestination();
@@ -55,6 +67,25 @@ public class TransformationContext {
         return result;
     }
     
+    public void assertDeadlineNotExceeded() throws DeadlineExceededException {
+        if (requestTimedOut.getAsBoolean()) throw new DeadlineExceededException("Request timed out");
+        if (deadline != null && ! Instant.now().isBefore(deadline)) throw new DeadlineExceededException();
+    }
+
+    /** @return null if the endpoint has no timeout */
+    public @CheckForNull Duration getTimeUntilDeadline() throws DeadlineExceededException {
+        assertDeadlineNotExceeded();
+        if (deadline == null) return null;
+        return Duration.between(Instant.now(), deadline);
+    }
+
+    /** @return the smaller of the timeout and the time remaining until the deadline */
+    public @Nonnull Duration getTimeoutWithinDeadline(@Nonnull Duration timeout) throws DeadlineExceededException {
+        var remaining = getTimeUntilDeadline();
+        if (remaining == null) return timeout;
+        return remaining.compareTo(timeout) < 0 ? remaining : timeout;
+    }
+
     public static Set<String> getSystemParameterNames() {
         return Set.of("request-id");
     }
@@ -0,0 +1,62 @@
+package endpoints;
+
+import lombok.SneakyThrows;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates threads for blocking I/O, which are virtual threads if ENDPOINTS_VIRTUAL_THREADS is set
+ * and the JVM supports them (JDK 21+), otherwise normal platform threads.
+ *    <p>
+ * Virtual threads are created via reflection, as this software is compiled for Java 11.
+ * This is used for the threads processing requests (which also send emails, when the request's transaction commits),
+ * the HTTP client's threads, which perform outgoing HTTP requests, and the threads executing and validating
+ * &lt;xml-from-database&gt; SQL, and the threads of {@link SharedThreadPool} which execute "off pool" tasks,
+ * which wait for these HTTP requests and queries to complete. 
+ * CPU-bound work such as XSLT is executed on {@link SharedThreadPool}'s fixed number of platform threads.
+ */
+public class VirtualThreads {
+
+    public static boolean isSupportedByJvm() {
+        // Java 19 and 20 have the method as a preview feature, which fails if preview features are not enabled
+        if (Runtime.version().feature() < 21) return false;
+        try { Thread.class.getMethod("ofVirtual"); return true; }
+        catch (NoSuchMethodException e) { return false; }
+    }
+
+    public static boolean isEnabled() {
+        return DeploymentParameters.get().virtualThreads && isSupportedByJvm();
+    }
+
+    @SneakyThrows(ReflectiveOperationException.class)
+    public static @Nonnull ThreadFactory newThreadFactory(@Nonnull String name) {
+        if (isEnabled()) {
+            var builderClass = Class.forName("java.lang.Thread$Builder");
+            var builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        }
+
+        return r -> {
+            var thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * @return a new virtual thread for each task if enabled, 
+     *         otherwise a pool of the specified number of platform threads
+     */
+    @SneakyThrows(ReflectiveOperationException.class)
+    public static @Nonnull ExecutorService newBlockingIoExecutor(@Nonnull String name, int platformThreadCount) {
+        if (isEnabled())
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                .invoke(null, newThreadFactory(name));
+
+        return Executors.newFixedThreadPool(platformThreadCount, newThreadFactory(name));
+    }
+}
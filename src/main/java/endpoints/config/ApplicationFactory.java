@@ -73,6 +73,22 @@ public abstract class ApplicationFactory extends DocumentOutputDefinitionParser
         }
     }
     
+    protected static void assertParameterTransformationCommandsValid(@Nonnull EndpointHierarchyFolderNode node)
+    throws ConfigurationException {
+        for (var child : node.children) {
+            if (child instanceof Endpoint) {
+                var endpoint = (Endpoint) child;
+                try { if (endpoint.parameterTransformation != null) endpoint.parameterTransformation.assertCommandsValid(); }
+                catch (ConfigurationException e) { throw new ConfigurationException("<endpoint name='" 
+                    + endpoint.name.name + "'> <parameter-transformation>", e); }
+            }
+            else if (child instanceof EndpointHierarchyFolderNode) {
+                assertParameterTransformationCommandsValid((EndpointHierarchyFolderNode) child);
+            }
+            else throw new RuntimeException("Unexpected child: "+child.getClass()); 
+        }
+    }
+    
     /** @throws ConfigurationException This loads an application from disk, which might be invalid */
     public static @Nonnull Application loadApplication(@Nonnull XsltCompilationThreads threads, @Nonnull File directory) 
     throws ConfigurationException {
@@ -119,6 +135,13 @@ public abstract class ApplicationFactory extends DocumentOutputDefinitionParser
             
             assertEmailServerConfiguredIfEmailTasks(result, result.endpoints);
             
+            // Commands check their configuration in the background while the rest of the application is parsed
+            for (var ds : dataSources.entrySet()) {
+                try { ds.getValue().assertCommandsValid(); }
+                catch (ConfigurationException e) { throw new ConfigurationException("Data source '" + ds.getKey() + "'", e); }
+            }
+            assertParameterTransformationCommandsValid(result.endpoints);
+            
             return result;
         }
     }
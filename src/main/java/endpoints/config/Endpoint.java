@@ -6,6 +6,7 @@ import endpoints.task.Task;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
@@ -17,6 +18,10 @@ public class Endpoint extends EndpointHierarchyNode {
     public @Nonnull NodeName name;
     public @CheckForNull ParameterTransformation parameterTransformation;
     public @Nonnull ParametersForHash parametersForHash;
+    /** Null if responses should not be cached */
+    public @CheckForNull Duration cacheDuration;
+    /** Null if the endpoint has no time limit */
+    public @CheckForNull Duration timeout;
     public @Nonnull List<ResponseConfiguration> success;
     public @Nonnull ResponseConfiguration error;
     public final @Nonnull List<Task> tasks = new ArrayList<>();
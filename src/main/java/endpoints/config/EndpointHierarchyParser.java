@@ -7,6 +7,7 @@ import com.offerready.xslt.DocumentGenerator.StyleVisionXslt;
 import com.offerready.xslt.WeaklyCachedXsltTransformer.XsltCompilationThreads;
 import endpoints.config.response.*;
 import endpoints.datasource.DataSourceCommand;
+import endpoints.datasource.OnDemandIncrementingNumberCommand;
 import endpoints.task.Task;
 import lombok.SneakyThrows;
 import org.w3c.dom.Element;
@@ -17,6 +18,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
+import java.time.Duration;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -165,7 +167,7 @@ public class EndpointHierarchyParser extends DomParser {
         var name = new NodeName(getMandatoryAttribute(element, "name"));
         try {
             assertNoOtherElements(element, "parameter", "parameter-transformation", "include-in-hash",
-                "success", "error", "task");
+                "cache", "success", "error", "task");
 
             var result = new Endpoint();
             
@@ -185,6 +187,18 @@ public class EndpointHierarchyParser extends DomParser {
                     throw new ConfigurationException("Endpoint has <include-in-hash> parameter '" + p.name + "'" +
                         " but this endpoint does not have a parameter of that name");
 
+            var timeoutMillis = getOptionalAttribute(element, "timeout-ms");
+            if (timeoutMillis != null) {
+                try { result.timeout = Duration.ofMillis(Long.parseLong(timeoutMillis)); }
+                catch (NumberFormatException e) { throw new ConfigurationException("timeout-ms='..' should be a number"); }
+            }
+
+            var cacheElement = getOptionalSingleSubElement(element, "cache");
+            if (cacheElement != null) {
+                try { result.cacheDuration = Duration.ofSeconds(Long.parseLong(getMandatoryAttribute(cacheElement, "seconds"))); }
+                catch (NumberFormatException e) { throw new ConfigurationException("<cache seconds='..'> should be a number"); }
+            }
+
             var successElements = getSubElements(element, "success");
             result.success = new ArrayList<>();
             for (int i = 0; i < successElements.size(); i++) {
@@ -222,6 +236,19 @@ public class EndpointHierarchyParser extends DomParser {
                 result.tasks.add(parseTask(threads, httpXsltDirectory, 
                     transformers, staticDir, result.aggregateParametersOverParents().keySet(), t, taskElements.get(t)));
             
+            // Responses served from the cache do not execute tasks, and contain the IDs of the request which was cached
+            if (result.cacheDuration != null) {
+                if ( ! result.tasks.isEmpty()) throw new ConfigurationException(
+                    "<cache> may not be used on endpoints with <task>s, as the tasks would not be executed for cached responses");
+                var usesOnDemandIncrementingNumber = 
+                    (result.parameterTransformation != null && result.parameterTransformation.dataSourceCommands.stream()
+                        .anyMatch(c -> c instanceof OnDemandIncrementingNumberCommand))
+                    || result.success.stream().anyMatch(s -> s instanceof TransformationResponseConfiguration
+                        && ((TransformationResponseConfiguration) s).transformer.usesOnDemandIncrementingNumber());
+                if (usesOnDemandIncrementingNumber) throw new ConfigurationException(
+                    "<cache> may not be used on endpoints using <on-demand-incrementing-number>, as it must be unique per request");
+            }
+            
             var successAndTasks = new ArrayList<EndpointExecutionParticipant>();
             successAndTasks.addAll(result.success);
             successAndTasks.addAll(result.tasks);
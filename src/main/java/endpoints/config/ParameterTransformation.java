@@ -1,5 +1,6 @@
 package endpoints.config;
 
+import com.databasesandlife.util.gwtsafe.ConfigurationException;
 import com.offerready.xslt.WeaklyCachedXsltTransformer;
 import endpoints.datasource.DataSourceCommand;
 
@@ -14,4 +15,11 @@ public class ParameterTransformation {
     public void assertTemplatesValid() throws WeaklyCachedXsltTransformer.DocumentTemplateInvalidException {
         xslt.assertValid();
     }
+
+    public void assertCommandsValid() throws ConfigurationException {
+        for (var c : dataSourceCommands) {
+            try { c.assertValid(); }
+            catch (ConfigurationException e) { throw new ConfigurationException(c.getClass().getSimpleName(), e); }
+        }
+    }
 }
@@ -1,28 +1,46 @@
 package endpoints.config;
 
-import com.databasesandlife.util.gwtsafe.ConfigurationException;
 import com.databasesandlife.util.jdbc.DbTransaction;
 import com.offerready.xslt.WeaklyCachedXsltTransformer.XsltCompilationThreads;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import endpoints.DeploymentParameters;
 import endpoints.GitApplicationRepository;
-import endpoints.GitApplicationRepository.RepositoryCommandFailedException;
 import endpoints.PublishEnvironment;
+import endpoints.ResponseCache;
 import endpoints.GitRevision;
 import lombok.*;
+import org.postgresql.PGConnection;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import java.io.File;
+import java.sql.DriverManager;
+import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static com.databasesandlife.util.gwtsafe.ConfigurationException.prefixExceptionMessage;
 import static endpoints.generated.jooq.Tables.APPLICATION_CONFIG;
 import static endpoints.generated.jooq.Tables.APPLICATION_PUBLISH;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 /**
- * Loads and caches Applications from disk based on the directory specified in the database (last publish)
+ * Loads and caches Applications from disk based on the directory specified in the database (last publish).
+ *    <p>
+ * Requests do not wait for each other: if a new revision has been published, it is loaded in the background,
+ * while requests continue to be served by the previous revision. Once the new revision has been loaded,
+ * and its templates compiled and validated, it replaces the previous revision.
+ * Only requests to an application which has never been loaded wait for it to be loaded.
+ *    <p>
+ * Which revisions are published is not queried for each request. Instead, {@link endpoints.PublishProcess} sends
+ * a Postgres notification, which each server listens for. The server then fetches the published revisions and
+ * loads any new revisions, so that they are loaded before requests need them. Deleting an application also sends
+ * the notification, and the published revisions are also fetched periodically, in case a notification is lost.
  */
 public class PublishedApplicationFactory extends ApplicationFactory {
 
@@ -32,13 +50,33 @@ public class PublishedApplicationFactory extends ApplicationFactory {
         @Nonnull PublishEnvironment env;
     }
 
+    @Value
     protected static class CachedApplication {
         @Nonnull GitRevision revision;
         @Nonnull Application application;
     }
+
+    @Value
+    protected static class Load {
+        @Nonnull GitRevision revision;
+        @Nonnull CompletableFuture<CachedApplication> result;
+    }
     
+    public static final @Nonnull String publishNotificationChannel = "endpoints_application_published";
+    protected static final long notificationTimeoutMillis = 60_000;
+    protected static final long reconnectDelayMillis = 10_000;
+    protected static final long failedLoadRetryDelayMillis = 60_000;
+
     protected @Nonnull File applicationCheckoutContainerDir;
-    protected final @Nonnull Map<ApplicationDefn, CachedApplication> cache = new HashMap<>();
+    protected final @Nonnull Map<ApplicationDefn, GitRevision> publishedRevisions = new ConcurrentHashMap<>();
+    protected final @Nonnull Map<ApplicationDefn, CachedApplication> cache = new ConcurrentHashMap<>();
+    /** Latest load of each application, in progress or finished, so that each revision is only loaded once */
+    protected final @Nonnull Map<ApplicationDefn, Load> loads = new ConcurrentHashMap<>();
+    protected final @Nonnull ExecutorService loadThreads = Executors.newCachedThreadPool(r -> {
+        var thread = new Thread(r, "application-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
     
     @SuppressFBWarnings("SA_LOCAL_SELF_ASSIGNMENT")
     public PublishedApplicationFactory(
@@ -56,25 +94,86 @@ public class PublishedApplicationFactory extends ApplicationFactory {
         for (var r : rows) {
             var name = r.value1();
             var revision = r.value3();
+            var defn = new ApplicationDefn(name, r.value2());
+            publishedRevisions.put(defn, revision);
+
+            // So that the revision is not loaded again, if published revisions are refreshed before this load finishes
+            var load = new Load(revision, new CompletableFuture<>());
+            loads.put(defn, load);
+
             threads.addTask(() -> {
                 try {
                     var repo = repos.get(name);
                     var directory = getApplicationDirectory(name, revision);
                     repo.checkoutAtomicallyIfNecessary(revision, directory);
 
-                    var cachedApp = new CachedApplication();
-                    cachedApp.revision = revision;
-                    cachedApp.application = loadApplication(threads, directory);
-
-                    synchronized (PublishedApplicationFactory.this) {
-                        cache.put(new ApplicationDefn(name, r.value2()), cachedApp);
-                    }
+                    var application = loadApplication(threads, directory);
+                    var cachedApp = new CachedApplication(revision, application);
+                    loads.computeIfPresent(defn, (k, l) -> {
+                        if (l == load) cache.put(defn, cachedApp);
+                        return l;
+                    });
+                    load.result.complete(cachedApp);
                 }
                 catch (Exception e) {
                     LoggerFactory.getLogger(getClass()).error("Cannot load application '"+name.name+"' (will skip)", e);
+                    load.result.completeExceptionally(e);
+                    forgetLoadLater(defn, load);
                 }
             });
         }
+
+        var listener = new Thread(this::listenForPublishNotifications, "publish-notification-listener");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    /** Fetches the revisions which are published, loads those which are not loaded, and forgets those not published */
+    protected void refreshPublishedRevisions(@Nonnull DbTransaction tx) {
+        var rows = tx.jooq()
+            .select(APPLICATION_PUBLISH.APPLICATION_NAME, APPLICATION_PUBLISH.ENVIRONMENT, APPLICATION_PUBLISH.REVISION)
+            .from(APPLICATION_PUBLISH).fetch();
+        var published = new HashMap<ApplicationDefn, GitRevision>();
+        for (var r : rows) published.put(new ApplicationDefn(r.value1(), r.value2()), r.value3());
+
+        publishedRevisions.keySet().retainAll(published.keySet());
+        cache.keySet().retainAll(published.keySet());
+        loads.keySet().retainAll(published.keySet());
+        for (var e : published.entrySet()) {
+            publishedRevisions.put(e.getKey(), e.getValue());
+            var cachedApp = cache.get(e.getKey());
+            if (cachedApp == null || ! cachedApp.revision.equals(e.getValue())) scheduleLoad(tx, e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Runs forever, on its own thread and database connection.
+     * After connecting, the published revisions are fetched, in case notifications were missed while not connected.
+     * They are also fetched if no notification has been received for a while, in case a notification was lost
+     * without the connection appearing broken, or was not sent, e.g. by a server running an older version.
+     */
+    @SuppressWarnings("InfiniteLoopStatement")
+    protected void listenForPublishNotifications() {
+        while (true) {
+            try (var connection = DriverManager.getConnection(DeploymentParameters.get().jdbcUrl)) {
+                try (var statement = connection.createStatement()) { statement.execute("LISTEN " + publishNotificationChannel); }
+                try (var tx = DeploymentParameters.get().newDbTransaction()) { refreshPublishedRevisions(tx); }
+
+                while (true) {
+                    var notifications = connection.unwrap(PGConnection.class).getNotifications((int) notificationTimeoutMillis);
+                    if ((notifications == null || notifications.length == 0) && ! connection.isValid(10)) 
+                        throw new SQLException("Connection is no longer valid");
+                    try (var tx = DeploymentParameters.get().newDbTransaction()) { refreshPublishedRevisions(tx); }
+                }
+            }
+            catch (Exception e) {
+                LoggerFactory.getLogger(getClass()).warn("Cannot listen for notifications of published applications " +
+                    "(will reconnect)", e);
+            }
+
+            try { Thread.sleep(reconnectDelayMillis); }
+            catch (InterruptedException ignored) { }
+        }
     }
 
     protected @Nonnull GitRevision fetchPublishedRevisionFromDb(
@@ -94,37 +193,90 @@ public class PublishedApplicationFactory extends ApplicationFactory {
         return new File(applicationCheckoutContainerDir, a.name + "-" + r.getSha256Hex());
     }
 
+    /** After a load failed, the revision is not loaded again for a while, then the load is attempted again */
+    protected void forgetLoadLater(@Nonnull ApplicationDefn defn, @Nonnull Load load) {
+        CompletableFuture.delayedExecutor(failedLoadRetryDelayMillis, MILLISECONDS).execute(() -> loads.remove(defn, load));
+    }
+
+    /**
+     * Loads the revision in the background, unless it is already being loaded, or has been loaded, 
+     * or its load recently failed.
+     * Once it has been loaded, it replaces the revision in the cache, unless a newer revision is being loaded.
+     */
+    protected @Nonnull CompletableFuture<CachedApplication> scheduleLoad(
+        @Nonnull DbTransaction tx, @Nonnull ApplicationDefn defn, @Nonnull GitRevision revision
+    ) {
+        var existing = loads.get(defn);
+        if (existing != null && existing.revision.equals(revision)) return existing.result;
+
+        var repo = GitApplicationRepository.fetch(tx, defn.name);
+        var load = new Load(revision, new CompletableFuture<>());
+        var current = loads.compute(defn, (k, l) -> l != null && l.revision.equals(revision) ? l : load);
+        if (current != load) return current.result;
+
+        loadThreads.execute(() -> {
+            try {
+                // Checkout the application to disk if necessary (e.g. AWS instance restarted, new blank disk)
+                var directory = getApplicationDirectory(defn.name, revision);
+                repo.checkoutAtomicallyIfNecessary(revision, directory);
+
+                LoggerFactory.getLogger(getClass()).info("Application '" + defn.name.name + "' has changed " +
+                    "or was never loaded: will load revision " + revision.getAbbreviated() + "...");
+                var threads = new XsltCompilationThreads();
+                var application = loadApplication(threads, directory);
+                threads.execute();
+                application.getEndpoints().assertTemplatesValid();
+
+                var cachedApp = new CachedApplication(revision, application);
+                loads.computeIfPresent(defn, (k, l) -> {
+                    if (l == load) cache.put(defn, cachedApp);
+                    return l;
+                });
+                ResponseCache.invalidate(defn.name, defn.env);
+                load.result.complete(cachedApp);
+            }
+            catch (Exception e) {
+                LoggerFactory.getLogger(getClass()).error("Cannot load application '" + defn.name.name + "' " +
+                    "revision " + revision.getAbbreviated() + " (previous revision, if any, will be used)", e);
+                load.result.completeExceptionally(e);
+                forgetLoadLater(defn, load);
+            }
+        });
+
+        return load.result;
+    }
+
     /** This fetches previously published applications, therefore they are assumed to be valid */
-    @Override public synchronized Application getApplication(
+    @Override public Application getApplication(
         @Nonnull DbTransaction tx, @Nonnull ApplicationName name, @Nonnull PublishEnvironment environment
     ) throws ApplicationNotFoundException {
+        // Determine what revision has been published and thus which we should load.
+        // The database is only queried for applications not known to be published, e.g. published moments ago
+        var defn = new ApplicationDefn(name, environment);
+        var revision = publishedRevisions.get(defn);
+        if (revision == null) {
+            revision = fetchPublishedRevisionFromDb(tx, name, environment);
+            publishedRevisions.putIfAbsent(defn, revision);
+        }
+
+        // Do we already have this revision loaded?
+        var cachedApp = cache.get(defn);
+        if (cachedApp != null && cachedApp.revision.equals(revision)) return cachedApp.application;
+
+        // Serve the previous revision until the new one has been loaded
+        var load = scheduleLoad(tx, defn, revision);
+        if (cachedApp != null) return cachedApp.application;
+
         try {
-            // Determine what revision has been published and thus which we should load
-            var revision = fetchPublishedRevisionFromDb(tx, name, environment);
-
-            // Do we already have this revision loaded?
-            CachedApplication cachedApp = cache.get(new ApplicationDefn(name, environment));
-            if (cachedApp != null && cachedApp.revision.equals(revision)) return cachedApp.application;
-
-            // Checkout the application to disk if necessary (e.g. AWS instance restarted, new blank disk)
-            var directory = getApplicationDirectory(name, revision);
-            var repo = GitApplicationRepository.fetch(tx, name);
-            repo.checkoutAtomicallyIfNecessary(revision, directory);
-
-            // Load the application and put into our cache
-            LoggerFactory.getLogger(getClass()).info("Application '" + name.name + "' has changed or was never loaded: will reload...");
-            var threads = new XsltCompilationThreads();
-            cachedApp = new CachedApplication();
-            cachedApp.revision = revision;
-            cachedApp.application = loadApplication(threads, directory);
-            cache.put(new ApplicationDefn(name, environment), cachedApp);
-            threads.execute();
-
-            return cachedApp.application;
+            return load.get().application;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
         }
-        catch (RepositoryCommandFailedException | ConfigurationException e) {
+        catch (ExecutionException e) {
             throw new RuntimeException(prefixExceptionMessage(
-                "Application which was previously successfully published seems is invalid", e), e);
+                "Application which was previously successfully published seems is invalid", e.getCause()), e.getCause());
         }
     }
 
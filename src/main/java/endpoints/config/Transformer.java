@@ -5,6 +5,7 @@ import com.databasesandlife.util.gwtsafe.ConfigurationException;
 import com.offerready.xslt.*;
 import com.offerready.xslt.WeaklyCachedXsltTransformer.DocumentTemplateInvalidException;
 import endpoints.TransformationContext;
+import endpoints.TransformationContext.DeadlineExceededException;
 import endpoints.datasource.DataSource;
 import endpoints.datasource.TransformationFailedException;
 import lombok.Getter;
@@ -28,6 +29,10 @@ public class Transformer {
         source.assertParametersSuffice(params, visibleIntermediateValues);
     }
     
+    public boolean usesOnDemandIncrementingNumber() {
+        return source.usesOnDemandIncrementingNumber();
+    }
+    
     public void assertTemplatesValid() throws DocumentTemplateInvalidException {
         generator.assertTemplateValid();
     }
@@ -38,8 +43,11 @@ public class Transformer {
         @Nonnull DocumentGenerationDestination dest
     ) throws TransformationFailedException {
         return source.scheduleExecution(context, visibleIntermediateValues, document -> {
-            try { generator.transform(dest, document, true, null, null); }
-            catch (DocumentTemplateInvalidException e) { throw new RuntimeException(e); }
+            try {
+                context.assertDeadlineNotExceeded(); // Transformations cannot be interrupted once started
+                generator.transform(dest, document, true, null, null);
+            }
+            catch (DocumentTemplateInvalidException | DeadlineExceededException e) { throw new RuntimeException(e); }
         });
     }
     
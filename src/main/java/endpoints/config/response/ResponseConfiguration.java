@@ -35,6 +35,9 @@ public abstract class ResponseConfiguration extends EndpointExecutionParticipant
     public boolean isConditional() { return condition.isOptional(); }
     public boolean isDownload() { return false; }
     
+    /** Response body is written directly to the client while it is generated, rather than being buffered first */
+    public boolean isStreaming() { return false; }
+    
     public boolean satisfiesCondition(@Nonnull Map<String, String> parameters) {
         return condition.evaluate(parameters);
     }
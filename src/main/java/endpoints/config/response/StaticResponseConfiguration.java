@@ -24,6 +24,7 @@ public class StaticResponseConfiguration extends ResponseConfiguration {
 
     public final @Nonnull File file;
     public final @CheckForNull String downloadFilenamePatternOrNull;
+    public final boolean streaming;
 
     @SneakyThrows(IOException.class)
     public static @Nonnull File findStaticFileAndAssertExists(@Nonnull File staticDir, @Nonnull String filename)
@@ -44,6 +45,7 @@ public class StaticResponseConfiguration extends ResponseConfiguration {
         assertNoOtherElements(responseElement);
         file = findStaticFileAndAssertExists(staticDir, getMandatoryAttribute(responseElement, "filename"));
         downloadFilenamePatternOrNull = getOptionalAttribute(responseElement, "download-filename");
+        streaming = Boolean.parseBoolean(getOptionalAttribute(responseElement, "stream"));
     }
 
     @Override public void assertParametersSuffice(@Nonnull Set<ParameterName> params) throws ConfigurationException {
@@ -53,4 +55,5 @@ public class StaticResponseConfiguration extends ResponseConfiguration {
     }
 
     public boolean isDownload() { return downloadFilenamePatternOrNull != null; }
+    @Override public boolean isStreaming() { return streaming; }
 }
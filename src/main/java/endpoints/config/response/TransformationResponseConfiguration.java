@@ -20,6 +20,7 @@ public class TransformationResponseConfiguration extends ResponseConfiguration {
     
     public @Nonnull Transformer transformer;
     public @CheckForNull String downloadFilenamePatternOrNull;
+    public boolean streaming;
 
     public TransformationResponseConfiguration(
         @Nonnull Map<String, Transformer> transformers, @Nonnull Element config, @Nonnull Element responseElement
@@ -31,6 +32,7 @@ public class TransformationResponseConfiguration extends ResponseConfiguration {
         transformer = transformers.get(transformerName);
         if (transformer == null) throw new ConfigurationException("Transformer name='"+transformerName+"' not found");
         downloadFilenamePatternOrNull = getOptionalAttribute(responseElement, "download-filename");
+        streaming = Boolean.parseBoolean(getOptionalAttribute(responseElement, "stream"));
     }
 
     @Override public void assertParametersSuffice(@Nonnull Set<ParameterName> params) throws ConfigurationException {
@@ -45,4 +47,5 @@ public class TransformationResponseConfiguration extends ResponseConfiguration {
     }
 
     public boolean isDownload() { return downloadFilenamePatternOrNull != null; }
+    @Override public boolean isStreaming() { return streaming; }
 }
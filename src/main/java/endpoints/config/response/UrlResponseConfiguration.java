@@ -22,6 +22,7 @@ public class UrlResponseConfiguration extends ResponseConfiguration {
     
     public final @Nonnull HttpRequestSpecification spec;
     public final @CheckForNull String downloadFilenamePatternOrNull;
+    public final boolean streaming;
 
     public UrlResponseConfiguration(
         @Nonnull XsltCompilationThreads threads, @Nonnull File httpXsltDirectory, 
@@ -30,6 +31,7 @@ public class UrlResponseConfiguration extends ResponseConfiguration {
         super(config);
         spec = new HttpRequestSpecification(threads, httpXsltDirectory, responseElement);
         downloadFilenamePatternOrNull = getOptionalAttribute(responseElement, "download-filename");
+        streaming = Boolean.parseBoolean(getOptionalAttribute(responseElement, "stream"));
     }
 
     @Override public void assertParametersSuffice(@Nonnull Set<ParameterName> params) throws ConfigurationException {
@@ -39,4 +41,5 @@ public class UrlResponseConfiguration extends ResponseConfiguration {
     }
 
     public boolean isDownload() { return downloadFilenamePatternOrNull != null; }
+    @Override public boolean isStreaming() { return streaming; }
 }
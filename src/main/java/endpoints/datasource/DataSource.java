@@ -57,6 +57,18 @@ public class DataSource {
         }
     }
 
+    /** @return true if executing this data source consumes a number unique to the request */
+    public boolean usesOnDemandIncrementingNumber() {
+        return commands.stream().anyMatch(c -> c instanceof OnDemandIncrementingNumberCommand);
+    }
+
+    public void assertCommandsValid() throws ConfigurationException {
+        for (var c : commands) {
+            try { c.assertValid(); }
+            catch (ConfigurationException e) { throw new ConfigurationException(c.getClass().getSimpleName(), e); }
+        }
+    }
+
     /** @param visibleIntermediateValues these values are already produced by the time this method is called. */
     public @Nonnull Runnable scheduleExecution(
         @Nonnull TransformationContext context,
@@ -1,5 +1,6 @@
 package endpoints.datasource;
 
+import com.databasesandlife.util.DomParser;
 import com.databasesandlife.util.gwtsafe.ConfigurationException;
 import com.databasesandlife.util.jdbc.DbTransaction;
 import com.offerready.xslt.WeaklyCachedXsltTransformer.XsltCompilationThreads;
@@ -23,6 +24,16 @@ public abstract class DataSourceCommand {
 
     protected final @Nonnull List<DataSourcePostProcessor> postProcessors;
 
+    /** DOM is not thread-safe, even for reading, so caches hold a private copy from which other copies are made */
+    public static @Nonnull Element copy(@Nonnull Element element) {
+        synchronized (element) {
+            var document = DomParser.newDocumentBuilder().newDocument();
+            var result = (Element) document.importNode(element, true);
+            document.appendChild(result);
+            return result;
+        }
+    }
+
     @SneakyThrows({SecurityException.class, ClassNotFoundException.class, NoSuchMethodException.class,
         IllegalAccessException.class, InstantiationException.class, InvocationTargetException.class})
     public static @Nonnull DataSourceCommand newForConfig(
@@ -73,6 +84,9 @@ public abstract class DataSourceCommand {
         @Nonnull Set<IntermediateValueName> visibleIntermediateValues
     ) throws ConfigurationException { }
     
+    /** Waits for checks of the configuration which happen in the background, after construction */
+    public void assertValid() throws ConfigurationException { }
+    
     /** Also expands parameters as necessary, as where parameters are to be expanded varies from one data source to another */
     abstract public @Nonnull DataSourceCommandFetcher scheduleFetch(
         @Nonnull TransformationContext context,
@@ -16,7 +16,7 @@ public abstract class DataSourceCommandFetcher implements Runnable {
         return result;
     }
 
-    // Called from ThreadPool once this is scheduled
+    // Called from SharedThreadPool once this is scheduled
     @SneakyThrows(TransformationFailedException.class)
     @Override
     public void run() {
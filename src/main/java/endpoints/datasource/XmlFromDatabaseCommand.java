@@ -2,31 +2,66 @@ package endpoints.datasource;
 
 import com.databasesandlife.util.DomParser;
 import com.databasesandlife.util.gwtsafe.ConfigurationException;
-import com.databasesandlife.util.jdbc.DbTransaction;
-import com.databasesandlife.util.jdbc.DbTransaction.CannotConnectToDatabaseException;
-import com.databasesandlife.util.jdbc.DbTransaction.SqlException;
 import com.offerready.xslt.WeaklyCachedXsltTransformer.XsltCompilationThreads;
+import endpoints.DatabaseConnectionPool;
+import endpoints.DeploymentParameters;
+import endpoints.ExecutionLimits;
+import endpoints.LruCache;
+import endpoints.Metrics;
 import endpoints.PlaintextParameterReplacer;
 import endpoints.TransformationContext;
+import endpoints.TransformationContext.DeadlineExceededException;
+import endpoints.VirtualThreads;
 import endpoints.config.IntermediateValueName;
 import endpoints.config.ParameterName;
 import org.w3c.dom.Element;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import java.io.File;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import static com.databasesandlife.util.DomParser.*;
 import static com.databasesandlife.util.PlaintextParameterReplacer.replacePlainTextParameters;
+import static java.sql.ResultSet.CONCUR_READ_ONLY;
+import static java.sql.ResultSet.TYPE_FORWARD_ONLY;
 
 public class XmlFromDatabaseCommand extends DataSourceCommand {
     
+    protected static final @Nonnull Metrics.Counter cacheHits = Metrics.registerCounter(
+        "endpoints_xml_from_database_cache_hits_total", "Results of <xml-from-database> served from cache");
+    protected static final @Nonnull Metrics.Counter cacheMisses = Metrics.registerCounter(
+        "endpoints_xml_from_database_cache_misses_total", "Results of <xml-from-database> with cache, not found in cache");
+    
+    /** Validation happens in the background, so that applications with many commands can be loaded quickly */
+    protected static final @Nonnull ExecutorService validationThreads = 
+        VirtualThreads.newBlockingIoExecutor("xml-from-database-validation", 10);
+    
+    /** 
+     * Queries are executed here, rather than on the request's SharedThreadPool, so that they use virtual threads if enabled.
+     * The SharedThreadPool task only waits for the result.
+     */
+    protected static final @Nonnull ExecutorService queryThreads = 
+        VirtualThreads.newBlockingIoExecutor("xml-from-database", DeploymentParameters.get().maxConcurrentIoTasks);
+
     protected @Nonnull String outputTag;
     protected @Nonnull String jdbcUrl;
+    protected @Nonnull DatabaseConnectionPool pool;
     protected @Nonnull String sql;
+    protected int fetchSize;
     protected @Nonnull List<String> paramPatterns;
+    protected @CheckForNull Duration cacheDuration;
+    /** Key is expanded parameters, weight is number of rows */
+    protected @CheckForNull LruCache<List<String>, Element> cache;
+    protected final @Nonnull Future<?> validation;
     
     public XmlFromDatabaseCommand(
         @Nonnull XsltCompilationThreads threads,
@@ -37,6 +72,8 @@ public class XmlFromDatabaseCommand extends DataSourceCommand {
 
         assertNoOtherElements(config, "post-process", "jdbc-connection-string", "sql", "param");
         outputTag = getOptionalAttribute(config, "tag", "xml-from-database");
+        try { fetchSize = Integer.parseInt(getOptionalAttribute(config, "fetch-size", "1000")); }
+        catch (NumberFormatException e) { throw new ConfigurationException("fetch-size attribute should be a number"); }
 
         var jdbc = getMandatorySingleSubElement(config, "jdbc-connection-string");
         var envVarName = getOptionalAttribute(jdbc, "from-environment-variable");
@@ -51,12 +88,50 @@ public class XmlFromDatabaseCommand extends DataSourceCommand {
                 "from-environment-variable='foo' set or have the JDBC URL as its body");
         }
 
+        try {
+            var cacheSeconds = getOptionalAttribute(config, "cache-seconds");
+            if (cacheSeconds != null) {
+                cacheDuration = Duration.ofSeconds(Integer.parseInt(cacheSeconds));
+                cache = new LruCache<>(Integer.parseInt(getOptionalAttribute(config, "cache-max-entries", "100")),
+                    Integer.parseInt(getOptionalAttribute(config, "cache-max-rows", "100000")), cacheHits, cacheMisses);
+            }
+        }
+        catch (NumberFormatException e) { throw new ConfigurationException("cache-seconds, cache-max-entries and " +
+            "cache-max-rows attributes should be numbers"); }
+
+        var maxConnections = getOptionalAttribute(jdbc, "max-connections");
+        try {
+            pool = DatabaseConnectionPool.getSharedPool(jdbcUrl, maxConnections == null 
+                ? DeploymentParameters.get().xmlFromDatabasePoolMaxConnections : Integer.parseInt(maxConnections));
+        }
+        catch (NumberFormatException e) { throw new ConfigurationException("<jdbc-connection-string max-connections='" 
+            + maxConnections + "'> should be a number"); }
+
         sql = getMandatorySingleSubElement(config, "sql").getTextContent();
         paramPatterns = getSubElements(config, "param").stream().map(e -> e.getTextContent()).collect(Collectors.toList());
 
-        var paramsExpanded = paramPatterns.stream().map(pattern -> null).toArray();
-        try { execute(paramsExpanded); }
-        catch (SqlException | CannotConnectToDatabaseException e) { throw new ConfigurationException(e); }
+        validation = validationThreads.submit(() -> { validate(); return null; });
+    }
+    
+    /** Checks the SQL is valid by preparing it, which does not execute it, so is quick even for expensive queries */
+    protected void validate() throws ConfigurationException {
+        try (var connection = pool.getConnection(); var statement = connection.prepareStatement(sql)) {
+            statement.getMetaData();
+            var placeholderCount = statement.getParameterMetaData().getParameterCount();
+            if (placeholderCount != paramPatterns.size()) throw new ConfigurationException("<sql> contains " 
+                + placeholderCount + " '?' placeholders but there are " + paramPatterns.size() + " <param> elements");
+        }
+        catch (SQLException e) { throw new ConfigurationException(e); }
+    }
+    
+    @Override
+    public void assertValid() throws ConfigurationException {
+        try { validation.get(); }
+        catch (InterruptedException e) { throw new RuntimeException(e); }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof ConfigurationException) throw (ConfigurationException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
     }
     
     @Override
@@ -65,42 +140,96 @@ public class XmlFromDatabaseCommand extends DataSourceCommand {
         @Nonnull Set<IntermediateValueName> visibleIntermediateValues
     ) throws ConfigurationException {
         super.assertParametersSuffice(params, visibleIntermediateValues);
-
         for (var p : paramPatterns) 
             PlaintextParameterReplacer.assertParametersSuffice(params, visibleIntermediateValues, p, "<param>");
     }
 
-    @SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter") 
-    protected @Nonnull Element[] execute(@Nonnull Object[] paramsExpanded) {
+    /**
+     * Rows are read from the database in batches of the fetch size, and converted to XML as they are read,
+     * so the whole result set is never held in memory in addition to the resulting XML.
+     * @param timeout null means the query has no timeout
+     */
+    protected @Nonnull Element[] execute(@Nonnull String[] paramsExpanded, @CheckForNull Duration timeout) throws SQLException {
         var resultDocument = DomParser.newDocumentBuilder().newDocument();
         var root = resultDocument.createElement(outputTag);
         resultDocument.appendChild(root);
 
-        try (var db = new DbTransaction(jdbcUrl)) {
-            for (var row : db.query(sql, paramsExpanded)) {
-                var rowElement = resultDocument.createElement("row");
-                root.appendChild(rowElement);
-                for (var col : row.getColumnNames()) {
-                    var colElement = resultDocument.createElement(col);
-                    rowElement.appendChild(colElement);
-                    colElement.setTextContent(row.getString(col));
+        try (var connection = pool.getConnection()) {
+            // PostgreSQL only respects the fetch size, rather than reading all rows at once, within a transaction
+            connection.setAutoCommit(false);
+            try (var statement = connection.prepareStatement(sql, TYPE_FORWARD_ONLY, CONCUR_READ_ONLY)) {
+                statement.setFetchSize(fetchSize);
+                if (timeout != null) 
+                    statement.setQueryTimeout((int) Math.max(1, (timeout.toMillis() + 999) / 1000)); // 0 would mean no timeout
+                for (int i = 0; i < paramsExpanded.length; i++) statement.setString(i + 1, paramsExpanded[i]);
+
+                try (var resultSet = statement.executeQuery()) {
+                    var metaData = resultSet.getMetaData();
+                    var columnNames = new String[metaData.getColumnCount()];
+                    for (int c = 0; c < columnNames.length; c++) columnNames[c] = metaData.getColumnLabel(c + 1);
+
+                    while (resultSet.next()) {
+                        var rowElement = resultDocument.createElement("row");
+                        root.appendChild(rowElement);
+                        for (int c = 0; c < columnNames.length; c++) {
+                            var colElement = resultDocument.createElement(columnNames[c]);
+                            rowElement.appendChild(colElement);
+                            colElement.setTextContent(resultSet.getString(c + 1));
+                        }
+                    }
                 }
             }
+            finally {
+                connection.rollback();
+            }
         }
 
         return new Element[] { root };
     }
     
+    protected @Nonnull Element[] executeWithCache(
+        @Nonnull String[] paramsExpanded, @CheckForNull Duration timeout
+    ) throws SQLException {
+        if (cache == null || cacheDuration == null) return execute(paramsExpanded, timeout);
+
+        var key = Arrays.asList(paramsExpanded);
+        var cached = cache.get(key);
+        if (cached != null) return new Element[] { copy(cached) };
+
+        var result = execute(paramsExpanded, timeout);
+        var root = result[0];
+        cache.put(key, copy(root), getSubElements(root, "row").size(), cacheDuration);
+        return result;
+    }
+    
     @Override
     public @Nonnull DataSourceCommandFetcher scheduleFetch(
         @Nonnull TransformationContext context,
         @Nonnull Set<IntermediateValueName> visibleIntermediateValues
     ) {
+        // The parameters are available now, so the query starts now, rather than when the SharedThreadPool gets to it
+        var stringParams = context.getStringParametersIncludingIntermediateValues(visibleIntermediateValues);
+        var paramsExpanded = paramPatterns.stream().map(pattern -> replacePlainTextParameters(pattern, stringParams))
+            .toArray(String[]::new);
+        var query = queryThreads.submit(() -> {
+            try (var ignored = ExecutionLimits.get().io.acquire()) {
+                // If the endpoint has no timeout, neither does the query
+                return executeWithCache(paramsExpanded, context.getTimeUntilDeadline()); 
+            }
+        });
+        
         var result = new DataSourceCommandFetcher() {
             @Override protected Element[] populateOrThrow() {
-                var stringParams = context.getStringParametersIncludingIntermediateValues(visibleIntermediateValues);
-                var paramsExpanded = paramPatterns.stream().map(pattern -> replacePlainTextParameters(pattern, stringParams)).toArray();
-                return execute(paramsExpanded);
+                try { return query.get(); }
+                catch (InterruptedException e) { Thread.currentThread().interrupt(); throw new RuntimeException(e); }
+                catch (ExecutionException e) {
+                    if (e.getCause() instanceof SQLException) {
+                        try { context.assertDeadlineNotExceeded(); }
+                        catch (DeadlineExceededException e2) { throw new RuntimeException(e2); }
+                        throw new RuntimeException("<xml-from-database> SQL failed: " + sql, e.getCause()); 
+                    }
+                    throw new RuntimeException(e.getCause());
+                }
             }
         };
         context.threads.addTaskOffPool(result);
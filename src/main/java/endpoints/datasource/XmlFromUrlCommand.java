@@ -14,6 +14,7 @@ import org.w3c.dom.Element;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import java.io.File;
+import java.time.Duration;
 import java.util.Set;
 
 import static com.databasesandlife.util.DomParser.getOptionalAttribute;
@@ -24,6 +25,8 @@ public class XmlFromUrlCommand extends DataSourceCommand {
     protected final @CheckForNull String outputWrapperElementName;
     protected final @Nonnull HttpRequestSpecification spec;
     protected final boolean expandParametersInResponse;
+    /** Overrides the Cache-Control header of the response, if not null */
+    protected final @CheckForNull Duration cacheDuration;
     
     public XmlFromUrlCommand(
         @Nonnull XsltCompilationThreads threads,
@@ -34,6 +37,11 @@ public class XmlFromUrlCommand extends DataSourceCommand {
         outputWrapperElementName = getOptionalAttribute(config, "tag");
         spec = new HttpRequestSpecification(threads, httpXsltDirectory, config);
         expandParametersInResponse = Boolean.parseBoolean(getOptionalAttribute(config, "expand-parameters-in-response", "true"));
+        try {
+            var cacheSeconds = getOptionalAttribute(config, "cache-seconds");
+            cacheDuration = cacheSeconds == null ? null : Duration.ofSeconds(Integer.parseInt(cacheSeconds));
+        }
+        catch (NumberFormatException e) { throw new ConfigurationException("cache-seconds attribute should be a number"); }
     }
 
     @Override
@@ -71,7 +79,7 @@ public class XmlFromUrlCommand extends DataSourceCommand {
                 return new Element[] { wrapped };
             }
         };
-        spec.scheduleExecutionAndParseResponse(context, visibleIntermediateValues, element -> {
+        spec.scheduleExecutionAndParseResponse(context, visibleIntermediateValues, true, cacheDuration, element -> {
             result.unexpanded = element;
             context.threads.addTask(result);
         });
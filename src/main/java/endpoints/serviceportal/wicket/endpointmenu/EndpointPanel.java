@@ -94,6 +94,7 @@ public class EndpointPanel extends Panel {
             var application = DeploymentParameters.get().getApplications(tx).getApplication(tx, applicationName, environment);
             var endpoint = application.getEndpoints().findEndpointOrThrow(endpointName);
             var request = new Request() {
+                @Override public @Nonnull String getHttpMethod() { return "POST"; }
                 @Override public @CheckForNull InetAddress getClientIpAddress() {
                     return new IpAddressDeterminer().getRequestIpAddress(
                         (((ServletWebRequest) RequestCycle.get().getRequest()).getContainerRequest()));
@@ -2,6 +2,7 @@ package endpoints.serviceportal.wicket.page;
 
 import endpoints.DeploymentParameters;
 import endpoints.config.ApplicationName;
+import endpoints.config.PublishedApplicationFactory;
 import endpoints.generated.jooq.tables.records.ApplicationConfigRecord;
 import org.apache.wicket.markup.html.basic.Label;
 import org.apache.wicket.markup.html.link.BookmarkablePageLink;
@@ -37,6 +38,8 @@ public class AdminDeleteApplicationPage extends AbstractLoggedInAdminPage {
                 .where(SHORT_LINK_TO_ENDPOINT.APPLICATION.eq(name)).execute();
             tx.jooq().deleteFrom(APPLICATION_PUBLISH)
                 .where(APPLICATION_PUBLISH.APPLICATION_NAME.eq(name)).execute();
+            // Sent when the transaction commits, so each server stops serving the application
+            tx.execute("NOTIFY " + PublishedApplicationFactory.publishNotificationChannel);
             tx.jooq().deleteFrom(REQUEST_LOG)
                 .where(REQUEST_LOG.REQUEST_ID.in(
                     select(REQUEST_LOG_IDS.REQUEST_ID).from(REQUEST_LOG_IDS).where(REQUEST_LOG_IDS.APPLICATION.eq(name)))).execute();
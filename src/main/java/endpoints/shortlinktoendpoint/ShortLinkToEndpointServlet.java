@@ -11,6 +11,7 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
@@ -33,8 +34,12 @@ public class ShortLinkToEndpointServlet extends AbstractEndpointsServlet {
     protected void doGet(@Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp)
     throws IOException {
         setCorsHeaders(req, resp);
+        var request = new ServletRequest(req);
+        processAsync(req, response -> processRequest(request, response));
+    }
 
-        var path = req.getRequestURI().substring(req.getContextPath().length());
+    protected void processRequest(@Nonnull ServletRequest req, @Nonnull AsyncResponse response) throws IOException {
+        var path = req.getPath();
         
         try (var tx = DeploymentParameters.get().newDbTransaction();
              var ignored = new Timer(getClass().getSimpleName() + " " + path)) {
@@ -49,7 +54,7 @@ public class ShortLinkToEndpointServlet extends AbstractEndpointsServlet {
                 .fetchOne();
             if (shortLink == null) {
                 LoggerFactory.getLogger(getClass()).error("Code '" + code.getCode() + "' not found");
-                resp.sendError(404, "Code '" + code.getCode() + "' not found");
+                response.write(resp -> resp.sendError(404, "Code '" + code.getCode() + "' not found"));
                 return;
             }
 
@@ -62,7 +67,13 @@ public class ShortLinkToEndpointServlet extends AbstractEndpointsServlet {
                 tx, shortLink.getApplication(), shortLink.getEnvironment());
             var endpoint = application.getEndpoints().findEndpointOrThrow(shortLink.getEndpoint());
 
-            var request = new ServletRequest(req) {
+            var request = new Request() {
+                @Override public @Nonnull String getHttpMethod() { return req.getHttpMethod(); }
+                @Override public @CheckForNull InetAddress getClientIpAddress() { return req.getClientIpAddress(); }
+                @Override public @Nonnull Map<String, List<String>> getLowercaseHttpHeadersWithoutCookies() {
+                    return req.getLowercaseHttpHeadersWithoutCookies(); }
+                @Override public @Nonnull List<Cookie> getCookies() { return req.getCookies(); }
+                @Override public @Nonnull String getUserAgent() { return req.getUserAgent(); }
                 @Override public @CheckForNull String getContentTypeIfPost() { return null; }
                 @Override public @Nonnull Map<ParameterName, List<String>> getParameters() {
                     return params.entrySet().stream().collect(toMap(r -> r.getKey(), r -> List.of(r.getValue())));
@@ -73,24 +84,24 @@ public class ShortLinkToEndpointServlet extends AbstractEndpointsServlet {
             
             new EndpointExecutor().execute(shortLink.getEnvironment(), shortLink.getApplication(), application, endpoint,
                 Boolean.parseBoolean(req.getParameter("debug")),
-                null, request, responseContent -> responseContent.deliver(resp));
+                null, request, response);
             
             tx.commit();
         }
         catch (ApplicationNotFoundException e) {
-            resp.sendError(400, "Application specified in short link not found " +
-                "or not published on the environment specified in this short link");
+            response.write(resp -> resp.sendError(400, "Application specified in short link not found " +
+                "or not published on the environment specified in this short link"));
         }
         catch (NodeNotFoundException e) {
-            resp.sendError(400, "Endpoint specified in this short link not found in the application");
+            response.write(resp -> resp.sendError(400, "Endpoint specified in this short link not found in the application"));
         }
         catch (RequestInvalidException e) {
             LoggerFactory.getLogger(getClass()).error("Request invalid", e);
-            resp.sendError(400, "Request invalid: " + e.getMessage());
+            response.write(resp -> resp.sendError(400, "Request invalid: " + e.getMessage()));
         }
         catch (Exception e) { 
             LoggerFactory.getLogger(getClass()).error("An internal error occurred", e);
-            resp.sendError(500, "An internal error occurred");
+            response.write(resp -> resp.sendError(500, "An internal error occurred"));
         }
     }
 }
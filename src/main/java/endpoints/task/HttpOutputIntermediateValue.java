@@ -23,8 +23,10 @@ public abstract class HttpOutputIntermediateValue {
     public @CheckForNull Pattern regex;
 
     public static class HttpXPathOutputIntermediateValue extends HttpOutputIntermediateValue {
+        public final @Nonnull String source;
         public final @Nonnull XPathExpression xpath;
         public HttpXPathOutputIntermediateValue(@Nonnull String xpath) throws ConfigurationException {
+            this.source = xpath;
             try { this.xpath = DomParser.getExpression(xpath); }
             catch (XPathExpressionException e) { throw new ConfigurationException(e); }
         }
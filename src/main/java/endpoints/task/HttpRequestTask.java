@@ -3,7 +3,9 @@ package endpoints.task;
 import com.databasesandlife.util.DomParser;
 import com.databasesandlife.util.ThreadPool.SynchronizationPoint;
 import com.databasesandlife.util.gwtsafe.ConfigurationException;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.jayway.jsonpath.InvalidJsonException;
+import com.jayway.jsonpath.JsonPath;
 import com.jayway.jsonpath.PathNotFoundException;
 import com.offerready.xslt.WeaklyCachedXsltTransformer.XsltCompilationThreads;
 import endpoints.HttpRequestSpecification;
@@ -18,10 +20,13 @@ import org.w3c.dom.Element;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.xpath.XPathExpressionException;
 import java.io.File;
 import java.io.IOException;
+import java.net.URL;
 import java.net.URLConnection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -34,6 +39,8 @@ public class HttpRequestTask extends Task {
     
     protected @Nonnull HttpRequestSpecification spec;
     protected @Nonnull List<HttpOutputIntermediateValue> outputIntermediateValues;
+    /** Set if the task has stream-response="true" */
+    protected @CheckForNull StreamingOutputExtractor streamingExtractor;
 
     public HttpRequestTask(
         @Nonnull XsltCompilationThreads threads, @Nonnull File httpXsltDirectory, 
@@ -45,6 +52,8 @@ public class HttpRequestTask extends Task {
             DomParser.getSubElements(config, "output-intermediate-value"));
         if (spec.ignoreIfError && ! outputIntermediateValues.isEmpty())
             throw new ConfigurationException("HTTP task cannot ignore-if-error='true' and output intermediate values");
+        if (Boolean.parseBoolean(DomParser.getOptionalAttribute(config, "stream-response")))
+            streamingExtractor = new StreamingOutputExtractor(outputIntermediateValues);
     }
 
     @Override
@@ -57,6 +66,27 @@ public class HttpRequestTask extends Task {
         return outputIntermediateValues.stream().map(v -> v.name).collect(Collectors.toSet());
     }
     
+    /** @param value from an XPath, JSONPath, or {@link StreamingOutputExtractor}, null if not found */
+    protected @Nonnull String toStringValue(
+        @Nonnull URL url, @Nonnull HttpOutputIntermediateValue x, @CheckForNull Object value
+    ) throws HttpRequestFailedException {
+        if (value == null)
+            throw new HttpRequestFailedException(url.toExternalForm(), null, "JSONPath not found in response from '" + url + "'");
+        if (value instanceof List)
+            throw new HttpRequestFailedException(url.toExternalForm(), null, "URL '" + url + "': " +
+                "JSONPath returned an array, whereas a string or number is required");
+        if (value instanceof Map)
+            throw new HttpRequestFailedException(url.toExternalForm(), null, "URL '" + url + "': " +
+                "JSONPath returned a JSON object node (= key-value map), whereas a string or number is required");
+        var stringValue = value.toString(); // Discovered at least: String, Integer, Double, Long
+        if (x.regex != null && ! x.regex.matcher(stringValue).matches())
+            throw new HttpRequestFailedException(url.toExternalForm(), null, "URL '" + url + "': " +
+                (x instanceof HttpXPathOutputIntermediateValue ? "XPath" : "JSONPath") + " returned " +
+                "'"+stringValue+"' which does not match regex '" + x.regex.pattern() + "'");
+        return stringValue;
+    }
+
+    /** The response is parsed once, then all XPaths or JSONPaths are evaluated against it */
     protected void parseResults(
         @Nonnull Map<IntermediateValueName, String> outputValues, 
         @CheckForNull URLConnection urlConnection
@@ -69,59 +99,53 @@ public class HttpRequestTask extends Task {
 
         var url = urlConnection.getURL();
         try {
+            var values = new HashMap<HttpOutputIntermediateValue, Object>();
             if (urlConnection.getContentType().toLowerCase().contains("xml")) {
+                for (var x : outputIntermediateValues)
+                    if ( ! (x instanceof HttpXPathOutputIntermediateValue))
+                        throw new HttpRequestFailedException(url.toExternalForm(), null,
+                            "URL '" + url + "' returned XML, yet output variables request JSONPath");
                 try (var inputStream = urlConnection.getInputStream()) {
-                    var downloadedXml = DomParser.from(inputStream);
-                    for (var x : outputIntermediateValues) {
-                        if ( ! (x instanceof HttpXPathOutputIntermediateValue))
-                            throw new HttpRequestFailedException(url.toExternalForm(), null,
-                                "URL '" + url + "' returned XML, yet output variables request JSONPath");
-                        // value can be empty string if it doesn't match :-(
-                        var value = (String) ((HttpXPathOutputIntermediateValue) x).xpath.evaluate(downloadedXml, STRING);
-                        if (x.regex != null && ! x.regex.matcher(value).matches())
-                            throw new HttpRequestFailedException(url.toExternalForm(), null, "URL '" + url + "': " +
-                                "XPath returned '"+value+"' which does not match regex '" + x.regex.pattern() + "'");
-                        outputValues.put(x.name, value);
+                    if (streamingExtractor != null) {
+                        values.putAll(streamingExtractor.extractFromXml(inputStream));
+                    } else {
+                        var downloadedXml = DomParser.from(inputStream);
+                        for (var x : outputIntermediateValues)  // value can be empty string if it doesn't match :-(
+                            values.put(x, ((HttpXPathOutputIntermediateValue) x).xpath.evaluate(downloadedXml, STRING));
                     }
                 }
-                catch (ConfigurationException e) {
+                catch (ConfigurationException | XMLStreamException e) {
                     throw new HttpRequestFailedException(url.toExternalForm(), null,
                         "Cannot parse XML response from '" + url + "'", e);
                 }
             }
             else if (urlConnection.getContentType().toLowerCase().contains("json")) {
+                for (var x : outputIntermediateValues)
+                    if ( ! (x instanceof HttpJsonOutputIntermediateValue))
+                        throw new HttpRequestFailedException(url.toExternalForm(), null,
+                            "URL '" + url + "' returned JSON, yet output variables request XPath");
                 try (var inputStream = urlConnection.getInputStream()) {
-                    for (var x : outputIntermediateValues) {
-                        if ( ! (x instanceof HttpJsonOutputIntermediateValue))
-                            throw new HttpRequestFailedException(url.toExternalForm(), null,
-                                "URL '" + url + "' returned JSON, yet output variables request XPath");
-                        // JsonSmartJsonProvider, net.minidev.json.parser
-                        var value = ((HttpJsonOutputIntermediateValue) x).jsonPath.read(inputStream);
-                        if (value instanceof List)
-                            throw new HttpRequestFailedException(url.toExternalForm(), null, "URL '" + url + "': " +
-                                "JSONPath returned an array, whereas a string or number is required");
-                        if (value instanceof Map)
-                            throw new HttpRequestFailedException(url.toExternalForm(), null, "URL '" + url + "': " +
-                                "JSONPath returned a JSON object node (= key-value map), whereas a string or number is required");
-                        var stringValue = value.toString(); // Discovered at least: String, Integer, Double, Long
-                        if (x.regex != null && ! x.regex.matcher(stringValue).matches())
-                            throw new HttpRequestFailedException(url.toExternalForm(), null, "URL '" + url + "': " +
-                                "JSONPath returned '"+stringValue+"' which does not match regex '" + x.regex.pattern() + "'");
-                        outputValues.put(x.name, stringValue);
+                    if (streamingExtractor != null) {
+                        values.putAll(streamingExtractor.extractFromJson(inputStream));
+                    } else {
+                        var document = JsonPath.parse(inputStream); // JsonSmartJsonProvider, net.minidev.json.parser
+                        for (var x : outputIntermediateValues) {
+                            try { values.put(x, document.read(((HttpJsonOutputIntermediateValue) x).jsonPath)); }
+                            catch (PathNotFoundException ignored) { } // Reported below
+                        }
                     }
                 }
-                catch (InvalidJsonException e) {
+                catch (InvalidJsonException | JsonProcessingException e) {
                     throw new HttpRequestFailedException(url.toExternalForm(), null,
                         "Cannot parse JSON response from '" + url + "'", e);
                 }
-                catch (PathNotFoundException e) {
-                    throw new HttpRequestFailedException(url.toExternalForm(), null,
-                        "JSONPath not found in response from '" + url + "'", e);
-                }
             }
             else throw new HttpRequestFailedException(url.toExternalForm(), null,
                     "URL '" + url + "' returned an unexpected content type " +
                         "'" + urlConnection.getContentType() + "': Expecting XML or JSON");
+
+            for (var x : outputIntermediateValues)
+                outputValues.put(x.name, toStringValue(url, x, values.get(x)));
         }
         catch (IOException | XPathExpressionException | HttpRequestFailedException e) {
             spec.throwException(url.toExternalForm(), e);
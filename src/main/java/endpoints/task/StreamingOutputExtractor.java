@@ -0,0 +1,187 @@
+package endpoints.task;
+
+import com.databasesandlife.util.gwtsafe.ConfigurationException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import endpoints.task.HttpOutputIntermediateValue.HttpJsonOutputIntermediateValue;
+import endpoints.task.HttpOutputIntermediateValue.HttpXPathOutputIntermediateValue;
+import lombok.RequiredArgsConstructor;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static javax.xml.stream.XMLStreamConstants.*;
+
+/**
+ * Extracts output intermediate values from an HTTP response as it is read, without building a DOM or JSON object tree,
+ * and stops reading as soon as all values have been found. This is for large responses, from which only a few values
+ * are needed.
+ *    <p>
+ * Only simple paths are supported: XPaths such as "/a/b", "/a/b/text()" or "/a/b/@c", matching the first such node,
+ * and JSONPaths which select a single value, such as "$.a.b[0].c". JSON numbers are returned as they appear in the
+ * response.
+ */
+public class StreamingOutputExtractor {
+
+    protected static final @Nonnull Pattern xpathPattern = Pattern.compile("((?:/[\\w.-]+)+)(/text\\(\\)|/@([\\w.-]+))?");
+    protected static final @Nonnull Pattern jsonPathPattern = Pattern.compile("\\$((?:\\['[^']*'\\]|\\[\\d+\\])*)");
+    protected static final @Nonnull Pattern jsonPathSegmentPattern = Pattern.compile("\\['([^']*)'\\]|\\[(\\d+)\\]");
+
+    @RequiredArgsConstructor
+    protected static class XmlPath {
+        protected final @Nonnull List<String> elements;
+        protected final @CheckForNull String attribute;
+        /** "text()" i.e. first text node directly within the element, rather than all text within the element */
+        protected final boolean directText;
+    }
+
+    protected final @Nonnull Map<HttpOutputIntermediateValue, XmlPath> xmlPaths = new LinkedHashMap<>();
+    /** Field names (String) and array indexes (Integer) */
+    protected final @Nonnull Map<HttpOutputIntermediateValue, List<Object>> jsonPaths = new LinkedHashMap<>();
+
+    public StreamingOutputExtractor(@Nonnull List<HttpOutputIntermediateValue> values) throws ConfigurationException {
+        for (var v : values) {
+            if (v instanceof HttpXPathOutputIntermediateValue) {
+                var source = ((HttpXPathOutputIntermediateValue) v).source;
+                var m = xpathPattern.matcher(source);
+                if ( ! m.matches()) throw new ConfigurationException("<output-intermediate-value xpath='" + source + "'>: " +
+                    "Only simple XPaths such as '/a/b', '/a/b/text()' or '/a/b/@c' are possible with stream-response='true'");
+                var elements = Arrays.asList(m.group(1).substring(1).split("/"));
+                xmlPaths.put(v, new XmlPath(elements, m.group(3), "/text()".equals(m.group(2))));
+            }
+            else if (v instanceof HttpJsonOutputIntermediateValue) {
+                var jsonPath = ((HttpJsonOutputIntermediateValue) v).jsonPath;
+                var m = jsonPathPattern.matcher(jsonPath.getPath());
+                if ( ! jsonPath.isDefinite() || ! m.matches())
+                    throw new ConfigurationException("<output-intermediate-value jsonpath='" + jsonPath.getPath() + "'>: " +
+                        "Only JSONPaths selecting a single value, such as '$.a.b[0].c', are possible with stream-response='true'");
+                var path = new ArrayList<Object>();
+                var segment = jsonPathSegmentPattern.matcher(m.group(1));
+                while (segment.find()) path.add(segment.group(1) != null ? segment.group(1) : Integer.valueOf(segment.group(2)));
+                jsonPaths.put(v, path);
+            }
+            else throw new RuntimeException("Unexpected: " + v.getClass());
+        }
+    }
+
+    /** @return values not found are the empty string, as with XPath */
+    public @Nonnull Map<HttpOutputIntermediateValue, Object> extractFromXml(@Nonnull InputStream xml)
+    throws XMLStreamException {
+        var factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+
+        var result = new HashMap<HttpOutputIntermediateValue, Object>();
+        var capturing = new HashMap<HttpOutputIntermediateValue, StringBuilder>();
+        var stack = new ArrayList<String>();
+        var reader = factory.createXMLStreamReader(xml);
+        try {
+            while (result.size() < xmlPaths.size() && reader.hasNext()) {
+                switch (reader.next()) {
+                    case START_ELEMENT:
+                        stack.add(reader.getLocalName());
+                        for (var e : xmlPaths.entrySet()) {
+                            if (result.containsKey(e.getKey()) || capturing.containsKey(e.getKey())) continue;
+                            if ( ! e.getValue().elements.equals(stack)) continue;
+                            if (e.getValue().attribute == null) capturing.put(e.getKey(), new StringBuilder());
+                            else {
+                                var value = reader.getAttributeValue(null, e.getValue().attribute);
+                                if (value != null) result.put(e.getKey(), value);
+                            }
+                        }
+                        break;
+
+                    case CHARACTERS: case CDATA: case SPACE:
+                        for (var i = capturing.entrySet().iterator(); i.hasNext(); ) {
+                            var e = i.next();
+                            var path = xmlPaths.get(e.getKey());
+                            if ( ! path.directText) e.getValue().append(reader.getText());
+                            else if (path.elements.size() == stack.size()) {
+                                result.put(e.getKey(), reader.getText()); // Adjacent text is coalesced
+                                i.remove();
+                            }
+                        }
+                        break;
+
+                    case END_ELEMENT:
+                        for (var i = capturing.entrySet().iterator(); i.hasNext(); ) {
+                            var e = i.next();
+                            var path = xmlPaths.get(e.getKey());
+                            if (path.elements.size() != stack.size()) continue;
+                            if ( ! path.directText) result.put(e.getKey(), e.getValue().toString());
+                            i.remove(); // text() of this element was empty, a later element may have one
+                        }
+                        stack.remove(stack.size() - 1);
+                        break;
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+
+        for (var v : xmlPaths.keySet()) result.putIfAbsent(v, "");
+        return result;
+    }
+
+    /**
+     * @return values are strings, or an empty list or map if the path selected an array or object;
+     * values not found, or null, are absent
+     */
+    public @Nonnull Map<HttpOutputIntermediateValue, Object> extractFromJson(@Nonnull InputStream json) throws IOException {
+        var result = new HashMap<HttpOutputIntermediateValue, Object>();
+        try (var parser = new JsonFactory().createParser(json)) {
+            if (parser.nextToken() != null) extractFromJson(parser, new ArrayList<>(), result);
+        }
+        return result;
+    }
+
+    /** @param parser positioned at the value at "path" */
+    protected void extractFromJson(
+        @Nonnull JsonParser parser, @Nonnull List<Object> path, @Nonnull Map<HttpOutputIntermediateValue, Object> result
+    ) throws IOException {
+        var token = parser.currentToken();
+        var withinPath = false;
+        for (var e : jsonPaths.entrySet()) {
+            var wanted = e.getValue();
+            if (wanted.equals(path)) {
+                if (token == JsonToken.START_ARRAY) result.put(e.getKey(), List.of());
+                else if (token == JsonToken.START_OBJECT) result.put(e.getKey(), Map.of());
+                else if (token != JsonToken.VALUE_NULL) result.put(e.getKey(), parser.getText());
+            }
+            else if (wanted.size() > path.size() && wanted.subList(0, path.size()).equals(path)) withinPath = true;
+        }
+
+        if (token != JsonToken.START_ARRAY && token != JsonToken.START_OBJECT) return;
+        if ( ! withinPath) { parser.skipChildren(); return; }
+
+        if (token == JsonToken.START_OBJECT) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                path.add(parser.getCurrentName());
+                parser.nextToken();
+                extractFromJson(parser, path, result);
+                path.remove(path.size() - 1);
+                if (result.size() == jsonPaths.size()) return; // No need to read further
+            }
+        } else {
+            for (int index = 0; parser.nextToken() != JsonToken.END_ARRAY; index++) {
+                path.add(index);
+                extractFromJson(parser, path, result);
+                path.remove(path.size() - 1);
+                if (result.size() == jsonPaths.size()) return;
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+CREATE TABLE incremental_id_per_endpoint_counter (
+  application  VARCHAR NOT NULL,
+  environment  VARCHAR NOT NULL,
+  endpoint     VARCHAR NOT NULL,
+  last_value   BIGINT NOT NULL,
+  PRIMARY KEY (application, environment, endpoint)
+);
+
+INSERT INTO incremental_id_per_endpoint_counter
+SELECT application, environment, endpoint, max(incremental_id_per_endpoint)
+FROM request_log_ids
+WHERE incremental_id_per_endpoint IS NOT NULL
+GROUP BY application, environment, endpoint;
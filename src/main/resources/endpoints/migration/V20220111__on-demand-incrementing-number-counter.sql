@@ -0,0 +1,39 @@
+CREATE TABLE on_demand_incrementing_number_counter (
+  application  VARCHAR NOT NULL,
+  environment  VARCHAR NOT NULL,
+  type         VARCHAR NOT NULL,   -- "perpetual", "year", "month"
+  period       VARCHAR NOT NULL,   -- "" for perpetual, "2019" for year, "2019-01" for month (in application's timezone)
+  last_value   INTEGER NOT NULL,
+  PRIMARY KEY (application, environment, type, period)
+);
+
+-- Year and month counters are only created here for applications with an application_config row.
+-- In single application mode, the timezone is from an environment variable, which is not known here.
+-- Their counters are created by the software the first time they are used in each year or month,
+-- from the request log, as are all counters of periods which have no counter yet.
+
+INSERT INTO on_demand_incrementing_number_counter
+SELECT application, environment, 'perpetual', '', max(on_demand_perpetual_incrementing_number)
+FROM request_log_ids
+WHERE on_demand_perpetual_incrementing_number IS NOT NULL
+GROUP BY application, environment;
+
+INSERT INTO on_demand_incrementing_number_counter
+SELECT ids.application, ids.environment, 'year',
+  to_char(log.datetime AT TIME ZONE config.timezone, 'YYYY'),
+  max(ids.on_demand_year_incrementing_number)
+FROM request_log_ids ids
+JOIN request_log log ON log.request_id = ids.request_id
+JOIN application_config config ON config.application_name = ids.application
+WHERE ids.on_demand_year_incrementing_number IS NOT NULL
+GROUP BY 1, 2, 4;
+
+INSERT INTO on_demand_incrementing_number_counter
+SELECT ids.application, ids.environment, 'month',
+  to_char(log.datetime AT TIME ZONE config.timezone, 'YYYY-MM'),
+  max(ids.on_demand_month_incrementing_number)
+FROM request_log_ids ids
+JOIN request_log log ON log.request_id = ids.request_id
+JOIN application_config config ON config.application_name = ids.application
+WHERE ids.on_demand_month_incrementing_number IS NOT NULL
+GROUP BY 1, 2, 4;
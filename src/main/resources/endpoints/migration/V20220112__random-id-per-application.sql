@@ -0,0 +1,12 @@
+-- Random IDs are reserved by inserting into this table, the primary key guarantees uniqueness without locking
+CREATE TABLE random_id_per_application (
+  application  VARCHAR NOT NULL,
+  environment  VARCHAR NOT NULL,
+  random_id    BIGINT NOT NULL,
+  PRIMARY KEY (application, environment, random_id)
+);
+
+INSERT INTO random_id_per_application
+SELECT DISTINCT application, environment, random_id_per_application
+FROM request_log_ids
+WHERE random_id_per_application IS NOT NULL;
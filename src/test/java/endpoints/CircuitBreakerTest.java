@@ -0,0 +1,55 @@
+package endpoints;
+
+import endpoints.CircuitBreaker.CircuitBreakerOpenException;
+import junit.framework.TestCase;
+
+import java.time.Duration;
+
+public class CircuitBreakerTest extends TestCase {
+
+    protected void assertRejected(CircuitBreaker breaker) {
+        try { breaker.assertRequestAllowed(); fail(); }
+        catch (CircuitBreakerOpenException ignored) { }
+    }
+
+    public void testOpenAndClose() throws Exception {
+        var breaker = new CircuitBreaker("host", 50, 4, Duration.ofMinutes(1), Duration.ofMinutes(1));
+
+        // Too few requests to open
+        breaker.recordResult(false);
+        breaker.recordResult(false);
+        breaker.recordResult(false);
+        assertEquals(CircuitBreaker.State.closed, breaker.getState());
+        breaker.assertRequestAllowed();
+
+        // Enough failures
+        breaker.recordResult(true);
+        breaker.recordResult(false);
+        assertEquals(CircuitBreaker.State.open, breaker.getState());
+        assertRejected(breaker);
+
+        // After open duration, one request is allowed, which closes the breaker if it succeeds
+        breaker.openedAtMillis -= Duration.ofMinutes(1).toMillis();
+        breaker.assertRequestAllowed();
+        assertEquals(CircuitBreaker.State.halfOpen, breaker.getState());
+        assertRejected(breaker);
+        breaker.recordResult(true);
+        assertEquals(CircuitBreaker.State.closed, breaker.getState());
+        breaker.assertRequestAllowed();
+    }
+
+    public void testHalfOpenFailure() throws Exception {
+        var breaker = new CircuitBreaker("host", 50, 1, Duration.ofMinutes(1), Duration.ZERO);
+        breaker.recordResult(false);
+        breaker.assertRequestAllowed();
+        assertEquals(CircuitBreaker.State.halfOpen, breaker.getState());
+        breaker.recordResult(false);
+        assertEquals(CircuitBreaker.State.open, breaker.getState());
+    }
+
+    public void testDisabled() {
+        var breaker = new CircuitBreaker("host", 0, 1, Duration.ofMinutes(1), Duration.ofMinutes(1));
+        breaker.recordResult(false);
+        assertEquals(CircuitBreaker.State.closed, breaker.getState());
+    }
+}
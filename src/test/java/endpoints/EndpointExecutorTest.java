@@ -10,16 +10,22 @@ import endpoints.config.*;
 import endpoints.config.ApplicationFactory.ApplicationConfig;
 import endpoints.config.response.EmptyResponseConfiguration;
 import endpoints.config.response.RedirectResponseConfiguration;
+import endpoints.generated.jooq.tables.records.ApplicationConfigRecord;
 import endpoints.task.Task;
 import junit.framework.TestCase;
 
 import javax.annotation.Nonnull;
 import java.io.File;
+import java.time.ZoneId;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
+import static endpoints.OnDemandIncrementingNumber.OnDemandIncrementingNumberType.year;
 import static endpoints.TransformationContext.ParameterNotFoundPolicy.error;
+import static endpoints.generated.jooq.Tables.REQUEST_LOG;
+import static endpoints.generated.jooq.Tables.REQUEST_LOG_IDS;
 import static java.net.HttpURLConnection.HTTP_MOVED_PERM;
 import static java.net.HttpURLConnection.HTTP_OK;
 
@@ -78,8 +84,11 @@ public class EndpointExecutorTest extends TestCase {
                             new EmptyResponseConfiguration(DomParser.from("<foo/>"))
                         );
                         
+                        threads.execute();
+                        
+                        var requestThreads = new SharedThreadPool();
                         var context = new TransformationContext(PublishEnvironment.live, ApplicationName.newRandomForTesting(), 
-                            Application.newForTesting(Map.of()), tx, threads,
+                            Application.newForTesting(Map.of()), tx, requestThreads,
                             Map.of(new ParameterName("param"), param), error, RequestId.newRandom(), 
                             Request.newForTesting(), Map.of());
                         
@@ -91,7 +100,7 @@ public class EndpointExecutorTest extends TestCase {
                             new ApplicationConfig(false, false), context, endpoint, Map.of(), 
                             0, new RandomRequestId(12), consumer);
                         
-                        threads.execute();
+                        requestThreads.execute();
                         
                         assertTrue(context.alreadyDeliveredResponse);
                         assertEquals("ab", output.toString());
@@ -104,4 +113,52 @@ public class EndpointExecutorTest extends TestCase {
         
         p.execute();
     }
-}
\ No newline at end of file
+
+    public void testExecuteLockFree() throws Exception {
+        var applicationName = ApplicationName.newRandomForTesting();
+        try (var tx = DeploymentParameters.get().newDbTransaction()) {
+            var appRow = new ApplicationConfigRecord();
+            appRow.setApplicationName(applicationName);
+            appRow.setDisplayName("unit test");
+            appRow.setGitUrl("TEST");
+            appRow.setTimezone(ZoneId.of("UTC"));
+            tx.insert(appRow);
+            tx.commit();
+        }
+
+        var threads = new XsltCompilationThreads();
+        var endpoint = new Endpoint();
+        endpoint.name = new NodeName("endpoint");
+        endpoint.success = List.of(new EmptyResponseConfiguration(DomParser.from("<foo/>")));
+        endpoint.error = new EmptyResponseConfiguration(DomParser.from("<foo/>"));
+        endpoint.tasks.add(new Task(threads, new File("/"), Map.of(), new File("/"), 0, DomParser.from("<foo/>")) {
+            @Override protected void executeThenScheduleSynchronizationPoint(
+                @Nonnull TransformationContext context, @Nonnull SynchronizationPoint workComplete
+            ) {
+                context.autoInc.get(year).getOrFetchValue(context.tx.db);
+                context.threads.addTask(workComplete);
+            }
+        });
+
+        for (int i = 1; i <= 2; i++) {
+            var response = new AtomicReference<BufferedHttpResponseDocumentGenerationDestination>();
+            var executor = new EndpointExecutor();
+            executor.lockFreeExecution = true;
+            executor.execute(PublishEnvironment.live, applicationName, Application.newForTesting(Map.of()), endpoint,
+                false, null, Request.newForTesting(), response::set);
+            assertEquals(HTTP_OK, response.get().getStatusCode());
+        }
+
+        try (var tx = DeploymentParameters.get().newDbTransaction()) {
+            var ids = tx.jooq().selectFrom(REQUEST_LOG_IDS).where(REQUEST_LOG_IDS.APPLICATION.eq(applicationName))
+                .orderBy(REQUEST_LOG_IDS.INCREMENTAL_ID_PER_ENDPOINT).fetch();
+            assertEquals(2, ids.size());
+            for (int i = 0; i < 2; i++) {
+                assertEquals(Long.valueOf(i + 1), ids.get(i).getIncrementalIdPerEndpoint());
+                assertNotNull(ids.get(i).getRandomIdPerApplication());
+                assertEquals(Integer.valueOf(i + 1), ids.get(i).getOnDemandYearIncrementingNumber());
+                assertEquals(1, tx.jooq().fetchCount(REQUEST_LOG, REQUEST_LOG.REQUEST_ID.eq(ids.get(i).getRequestId())));
+            }
+        }
+    }
+}
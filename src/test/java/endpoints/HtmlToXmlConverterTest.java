@@ -0,0 +1,35 @@
+package endpoints;
+
+import endpoints.HtmlToXmlConverter.HtmlTooLargeException;
+import junit.framework.TestCase;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.io.ByteArrayInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class HtmlToXmlConverterTest extends TestCase {
+
+    public void testConvert() throws Exception {
+        var html = "<!doctype html><!-- c --><p class=x @click=y>a<br>b<script>if (1 < 2) f()</script>";
+        var result = new HtmlToXmlConverter().convert(new ByteArrayInputStream(html.getBytes(UTF_8)), 1_000);
+
+        assertEquals("html", result.getTagName());
+        assertEquals(Node.COMMENT_NODE, result.getOwnerDocument().getFirstChild().getNodeType());
+        var p = (Element) result.getElementsByTagName("p").item(0);
+        assertEquals("x", p.getAttribute("class"));
+        assertFalse(p.hasAttribute("@click"));
+        assertEquals(1, p.getElementsByTagName("br").getLength());
+        assertEquals("abif (1 < 2) f()", p.getTextContent());
+    }
+
+    public void testMaxBytes() throws Exception {
+        var html = "<p>" + "x".repeat(1_000) + "</p>";
+        try {
+            new HtmlToXmlConverter().convert(new ByteArrayInputStream(html.getBytes(UTF_8)), 500);
+            fail();
+        }
+        catch (HtmlTooLargeException ignored) { }
+    }
+}
@@ -2,7 +2,6 @@ package endpoints;
 
 import com.databasesandlife.util.DomParser;
 import com.databasesandlife.util.TemporaryFile;
-import com.databasesandlife.util.ThreadPool;
 import com.databasesandlife.util.gwtsafe.ConfigurationException;
 import com.offerready.xslt.WeaklyCachedXsltTransformer.XsltCompilationThreads;
 import endpoints.HttpRequestSpecification.HttpRequestFailedException;
@@ -93,7 +92,7 @@ public class HttpRequestSpecificationTest extends TestCase {
             var application = Application.newForTesting(Map.of("t", Transformer.newIdentityTransformerForTesting()));
             try (var tx = new ApplicationTransaction(application)) {
                 var context = new TransformationContext(PublishEnvironment.live, ApplicationName.newRandomForTesting(), 
-                    application, tx, new ThreadPool(), params,
+                    application, tx, new SharedThreadPool(), params,
                     ParameterNotFoundPolicy.error, RequestId.newRandom(), endpoints.Request.newForTesting(), Map.of());
                 var resultContainer = new Object() {
                     public Element element;
@@ -253,4 +252,12 @@ public class HttpRequestSpecificationTest extends TestCase {
             resp.setContentType("something/invalid");
         }).getTagName());
     }
+
+    public void testToUri() throws Exception {
+        assertEquals("http://host/a/b?q=x%2Fy", HttpRequestSpecification.toUri("http://host/a/b?q=x%2Fy").toString());
+        
+        // Illegal characters are encoded, existing escapes are not encoded again
+        assertEquals("http://host/a%20b?q=a%20b&r=x%2Fy&s=%C3%A4%25",
+            HttpRequestSpecification.toUri("http://host/a b?q=a b&r=x%2Fy&s=\u00e4%").toString());
+    }
 }
\ No newline at end of file
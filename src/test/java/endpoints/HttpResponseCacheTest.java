@@ -0,0 +1,35 @@
+package endpoints;
+
+import junit.framework.TestCase;
+
+import javax.annotation.CheckForNull;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.time.Duration;
+
+public class HttpResponseCacheTest extends TestCase {
+
+    protected URLConnection newResponse(@CheckForNull String cacheControl) throws Exception {
+        return new HttpURLConnection(new URL("http://localhost/")) {
+            @Override public void connect() { }
+            @Override public void disconnect() { }
+            @Override public boolean usingProxy() { return false; }
+            @Override public String getHeaderField(String name) {
+                return name.equalsIgnoreCase("Cache-Control") ? cacheControl : null;
+            }
+        };
+    }
+
+    public void testGetFreshness() throws Exception {
+        assertEquals(Duration.ZERO, HttpResponseCache.getFreshness(newResponse(null), null));
+        assertEquals(Duration.ofSeconds(60), HttpResponseCache.getFreshness(newResponse("public, max-age=60"), null));
+        assertEquals(Duration.ofSeconds(60), HttpResponseCache.getFreshness(newResponse("MAX-AGE=\"60\""), null));
+        assertEquals(Duration.ZERO, HttpResponseCache.getFreshness(newResponse("s-maxage=60"), null));
+        assertEquals(Duration.ZERO, HttpResponseCache.getFreshness(newResponse("no-cache, max-age=60"), null));
+        assertNull(HttpResponseCache.getFreshness(newResponse("no-store"), null));
+
+        // Configured duration overrides headers
+        assertEquals(Duration.ofSeconds(5), HttpResponseCache.getFreshness(newResponse("no-store"), Duration.ofSeconds(5)));
+    }
+}
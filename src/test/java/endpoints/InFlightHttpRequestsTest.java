@@ -0,0 +1,45 @@
+package endpoints;
+
+import com.databasesandlife.util.DomParser;
+import junit.framework.TestCase;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Map;
+
+public class InFlightHttpRequestsTest extends TestCase {
+
+    public void testJoin() throws Exception {
+        var key = HttpResponseCache.newKey("GET", new URI("http://localhost/in-flight-test"), Map.of(), null);
+
+        var leader = InFlightHttpRequests.join(key);
+        var follower = InFlightHttpRequests.join(key);
+        assertTrue(leader.leader);
+        assertFalse(follower.leader);
+
+        var response = DomParser.from("<response><foo/></response>");
+        leader.complete(response);
+        var shared = follower.await(Duration.ofSeconds(1));
+        assertNotNull(shared);
+        assertNotSame(response, shared);
+        assertEquals("foo", DomParser.getSubElements(shared, "*").get(0).getTagName());
+
+        // After the leader has completed, the next request is a new leader
+        var next = InFlightHttpRequests.join(key);
+        assertTrue(next.leader);
+        next.complete(null);
+    }
+
+    public void testLeaderFailed() throws Exception {
+        var uri = new URI("http://localhost/in-flight-test");
+        var leader = InFlightHttpRequests.join(HttpResponseCache.newKey("POST", uri, Map.of(), new byte[] { 1 }));
+        var follower = InFlightHttpRequests.join(HttpResponseCache.newKey("POST", uri, Map.of(), new byte[] { 1 }));
+        var otherBody = InFlightHttpRequests.join(HttpResponseCache.newKey("POST", uri, Map.of(), new byte[] { 2 }));
+        assertFalse(follower.leader);
+        assertTrue(otherBody.leader);
+
+        leader.complete(null);
+        otherBody.complete(null);
+        assertNull(follower.await(Duration.ofSeconds(1)));
+    }
+}
@@ -0,0 +1,103 @@
+package endpoints;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.json.XML;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.w3c.dom.Element;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.util.stream.StreamSupport;
+
+import static com.databasesandlife.util.DomParser.newDocumentBuilder;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
+
+/**
+ * Compares {@link JsonToXmlConverter} with the previous conversion via org.json objects and an XML string.
+ * Not run by Maven, as it takes several minutes: run {@link #main} from the IDE, after the tests have been compiled.
+ * This reports the time per conversion in ms, and the bytes allocated per conversion ("gc.alloc.rate.norm"),
+ * for each input size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class JsonToXmlConverterBenchmark {
+
+    /** 1 KB, 1 MB, 50 MB */
+    @Param({"1024", "1048576", "52428800"})
+    public int sizeBytes;
+
+    protected byte[] json;
+
+    @Setup
+    public void createJson() {
+        var result = new StringBuilder("[");
+        for (int i = 0; result.length() < sizeBytes; i++) {
+            if (i > 0) result.append(",");
+            result.append("{\"id\":").append(i).append(",\"name\":\"Item ").append(i).append("\",")
+                .append("\"price\":").append(i * 0.25).append(",\"in stock\":").append(i % 2 == 0).append(",")
+                .append("\"tags\":[\"a\",\"b\",\"c\"],\"supplier\":{\"name\":\"Supplier\",\"country\":null}}");
+        }
+        json = result.append("]").toString().getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public @Nonnull Element streaming() throws Exception {
+        return new JsonToXmlConverter().convert("application/json", new ByteArrayInputStream(json), "root");
+    }
+
+    /** As {@link JsonToXmlConverter#convert} was, before it built the DOM directly */
+    @Benchmark
+    public @Nonnull Element viaXmlString() throws Exception {
+        var converter = new JsonToXmlConverter();
+        try (var reader = new InputStreamReader(new ByteArrayInputStream(json), UTF_8)) {
+            var xmlString = XML.toString(makeKeysInJsonSafeForXml(converter, new JSONTokener(reader).nextValue()));
+            var xmlIncludingHeader = "<?xml version=\"1.0\" encoding=\"utf-8\"?><root>" + xmlString + "</root>";
+            return newDocumentBuilder().parse(new ByteArrayInputStream(xmlIncludingHeader.getBytes(UTF_8)))
+                .getDocumentElement();
+        }
+    }
+
+    protected @Nonnull Object makeKeysInJsonSafeForXml(@Nonnull JsonToXmlConverter converter, @Nonnull Object input) {
+        if (input instanceof JSONObject)
+            return new JSONObject(((JSONObject) input).keySet().stream().collect(toMap(
+                key -> converter.makeKeySafeForXml(key),
+                key -> makeKeysInJsonSafeForXml(converter, ((JSONObject) input).opt(key))
+            )));
+        else if (input instanceof JSONArray)
+            return new JSONArray(StreamSupport.stream(((JSONArray) input).spliterator(), false)
+                .map(e -> makeKeysInJsonSafeForXml(converter, e))
+                .collect(toList()));
+        else return input;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(JsonToXmlConverterBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+}
@@ -1,18 +1,55 @@
 package endpoints;
 
 import junit.framework.TestCase;
-import org.json.JSONArray;
-import org.json.JSONTokener;
+import org.json.JSONException;
+import org.w3c.dom.Element;
 
-import java.io.StringReader;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class JsonToXmlConverterTest extends TestCase {
 
-    public void testMakeKeysSafeForXml() {
-        var jsonString = "[ { \"1foo ba\uffffr1\": 123 } ]";
-        var json = new JSONTokener(new StringReader(jsonString)).nextValue();
-        var safeJson = (JSONArray) new JsonToXmlConverter().makeKeysInJsonSafeForXml(json);
-        var safeJsonString = safeJson.toString();
-        assertEquals("[{\"_0031_foo_0020_ba_ffff_r1\":123}]", safeJsonString);
+    protected String convert(String json) throws Exception {
+        Element result = new JsonToXmlConverter().convert("application/json",
+            new ByteArrayInputStream(json.getBytes(UTF_8)), "root");
+        var transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        var xml = new StringWriter();
+        transformer.transform(new DOMSource(result), new StreamResult(xml));
+        return xml.toString();
+    }
+
+    public void testMakeKeysSafeForXml() throws Exception {
+        assertEquals("<root><array><_0031_foo_0020_ba_ffff_r1>123</_0031_foo_0020_ba_ffff_r1></array></root>",
+            convert("[ { \"1foo ba\uffffr1\": 123 } ]"));
+    }
+
+    public void testConvert() throws Exception {
+        assertEquals("<root><a>x</a><b>1</b><b>2</b><c><d>true</d><e>null</e><f/></c></root>",
+            convert("{ \"a\": \"x\", \"b\": [1, 2], \"c\": { \"d\": true, \"e\": null, \"f\": \"\" } }"));
+
+        // Arrays within arrays, and the "content" key, as org.json XML.toString
+        assertEquals("<root><a><array>1</array><array>2</array></a><a>3</a></root>", convert("{ \"a\": [[1, 2], 3] }"));
+        assertEquals("<root><a>x<b>1</b></a></root>", convert("{ \"a\": { \"content\": \"x\", \"b\": 1 } }"));
+        assertEquals("<root><a>x\ny</a></root>", convert("{ \"a\": { \"content\": [\"x\", \"y\"] } }"));
+
+        // Numbers as org.json formats them
+        assertEquals("<root><a>1.5</a><b>-10</b></root>", convert("{ \"a\": 1.5, \"b\": -10 }"));
+
+        // Not an object or array
+        assertEquals("<root>\"x\"</root>", convert("\"x\""));
+    }
+
+    public void testInvalid() throws Exception {
+        for (var json : new String[] { "", "{ \"a\": ", "{ \"a\": 1, \"a\": 2 }", "{ \"a\": \"\\u0001\" }" }) {
+            try { convert(json); fail(json); }
+            catch (JSONException e) { }
+        }
     }
-}
\ No newline at end of file
+}
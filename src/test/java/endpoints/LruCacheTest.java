@@ -0,0 +1,37 @@
+package endpoints;
+
+import junit.framework.TestCase;
+
+import java.time.Duration;
+
+public class LruCacheTest extends TestCase {
+
+    public void testEviction() {
+        var hits = new Metrics.Counter();
+        var misses = new Metrics.Counter();
+        var cache = new LruCache<String, String>(2, 10, hits, misses);
+        var ttl = Duration.ofMinutes(1);
+
+        // Too many entries: least recently used is evicted
+        cache.put("a", "A", 1, ttl);
+        cache.put("b", "B", 1, ttl);
+        assertEquals("A", cache.get("a"));
+        cache.put("c", "C", 1, ttl);
+        assertEquals("A", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(2, hits.get());
+        assertEquals(1, misses.get());
+
+        // Too heavy
+        cache.put("d", "D", 10, ttl);
+        assertEquals(1, cache.size());
+        assertEquals("D", cache.get("d"));
+        cache.put("e", "E", 11, ttl);
+        assertNull(cache.get("e"));
+        assertEquals("D", cache.get("d"));
+
+        // Expired
+        cache.put("f", "F", 1, Duration.ofSeconds(-1));
+        assertNull(cache.get("f"));
+    }
+}
@@ -0,0 +1,30 @@
+package endpoints;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+public class MetricsTest extends TestCase {
+
+    public void testWrite() {
+        var a = Metrics.registerCounter("endpoints_test_requests_total{pool=\"a\"}", "Test requests");
+        var b = Metrics.registerCounter("endpoints_test_requests_total{pool=\"b\"}", "Test requests");
+        a.increment();
+        b.add(5);
+
+        var result = new StringWriter();
+        Metrics.write(new PrintWriter(result, true));
+        assertTrue(result.toString().contains(
+            "# HELP endpoints_test_requests_total Test requests\n" +
+            "# TYPE endpoints_test_requests_total counter\n" +
+            "endpoints_test_requests_total{pool=\"a\"} 1\n" +
+            "endpoints_test_requests_total{pool=\"b\"} 5\n"));
+
+        Metrics.unregister("endpoints_test_", "pool=\"a\"");
+        result = new StringWriter();
+        Metrics.write(new PrintWriter(result, true));
+        assertFalse(result.toString().contains("pool=\"a\""));
+        assertTrue(result.toString().contains("pool=\"b\""));
+    }
+}
@@ -3,10 +3,7 @@ package endpoints;
 import com.databasesandlife.util.jdbc.DbTransaction;
 import endpoints.OnDemandIncrementingNumber.OnDemandIncrementingNumberType;
 import endpoints.config.ApplicationName;
-import endpoints.config.NodeName;
 import endpoints.generated.jooq.tables.records.ApplicationConfigRecord;
-import endpoints.generated.jooq.tables.records.RequestLogIdsRecord;
-import endpoints.generated.jooq.tables.records.RequestLogRecord;
 import junit.framework.TestCase;
 
 import javax.annotation.Nonnull;
@@ -15,31 +12,13 @@ import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZoneOffset;
 
+import static endpoints.OnDemandIncrementingNumber.OnDemandIncrementingNumberType.month;
 import static endpoints.OnDemandIncrementingNumber.OnDemandIncrementingNumberType.perpetual;
 import static endpoints.OnDemandIncrementingNumber.OnDemandIncrementingNumberType.year;
 import static java.time.temporal.ChronoUnit.HOURS;
 
 public class OnDemandIncrementingNumberTest extends TestCase {
     
-    protected void insertRequestLog(@Nonnull DbTransaction tx, @Nonnull ApplicationName app, @Nonnull Instant when) {
-        var ids = new RequestLogIdsRecord();
-        ids.setRequestId(RequestId.newRandom());
-        ids.setApplication(app);
-        ids.setEndpoint(new NodeName("endpoint"));
-        ids.setEnvironment(PublishEnvironment.live);
-        ids.setOnDemandPerpetualIncrementingNumber(1);
-        ids.setOnDemandYearIncrementingNumber(10);
-        ids.setOnDemandMonthIncrementingNumber(100);
-        tx.insert(ids);
-
-        var r = new RequestLogRecord();
-        r.setRequestId(ids.getRequestId());
-        r.setDatetime(when);
-        r.setStatusCode(200);
-        r.setUserAgent("user agent");
-        tx.insert(r);
-    }
-    
     protected void performTest(
         int expectedValue, @Nonnull DbTransaction tx, @Nonnull ApplicationConfigRecord app,
         @Nonnull OnDemandIncrementingNumberType type, @Nonnull Instant now, @Nonnull String timezone
@@ -69,11 +48,41 @@ public class OnDemandIncrementingNumberTest extends TestCase {
             tx.insert(appRow);
             
             performTest(1, tx, appRow, perpetual, oneHourLaterNow, "UTC");
-            insertRequestLog(tx, app, requestLog);
             performTest(2, tx, appRow, perpetual, oneHourLaterNow, "CET");
 
-            performTest(11, tx, appRow, year, oneHourLaterNow, "UTC");
+            performTest(1, tx, appRow, year, oneHourLaterNow, "UTC");
             performTest(1, tx, appRow, year, oneHourLaterNow, "CET");
+            performTest(2, tx, appRow, year, oneHourLaterNow, "UTC");
+            
+            // Value is only fetched once per object
+            var obj = new OnDemandIncrementingNumber(app, PublishEnvironment.live, month, requestLog);
+            assertEquals(1, obj.getOrFetchValue(tx));
+            assertEquals(1, obj.getOrFetchValue(tx));
+        }
+    }
+
+    public void testSeparateTransaction() {
+        var app = ApplicationName.newRandomForTesting();
+        var now = Instant.now();
+
+        try (var tx = DeploymentParameters.get().newDbTransaction()) {
+            var appRow = new ApplicationConfigRecord();
+            appRow.setApplicationName(app);
+            appRow.setDisplayName("unit test");
+            appRow.setGitUrl("TEST");
+            tx.insert(appRow);
+            tx.commit();
+        }
+
+        // Number is consumed even though the request's transaction is rolled back
+        try (var tx = DeploymentParameters.get().newDbTransaction()) {
+            var obj = new OnDemandIncrementingNumber(app, PublishEnvironment.live, perpetual, now);
+            obj.separateTransaction = true;
+            assertEquals(1, obj.getOrFetchValue(tx));
+        }
+        try (var tx = DeploymentParameters.get().newDbTransaction()) {
+            var obj = new OnDemandIncrementingNumber(app, PublishEnvironment.live, perpetual, now);
+            assertEquals(2, obj.getOrFetchValue(tx));
         }
     }
-}
\ No newline at end of file
+}
@@ -43,11 +43,15 @@ public class HttpRequestTaskTest extends TestCase {
         }
     }
     
-    @SuppressWarnings("StringBufferReplaceableByString")
     protected @Nonnull HttpRequestTask newTask(String extraXml, boolean ignoreErrors) throws ConfigurationException {
+        return newTask(ignoreErrors ? "ignore-if-error='true'" : "", extraXml);
+    }
+
+    @SuppressWarnings("StringBufferReplaceableByString")
+    protected @Nonnull HttpRequestTask newTask(String attributes, String extraXml) throws ConfigurationException {
         try (var xsltDir = new TemporaryFile("foo", "bar")) {
             var xml = new StringBuilder();
-            xml.append("<task ").append(ignoreErrors ? "ignore-if-error='true'" : "").append(">");
+            xml.append("<task ").append(attributes).append(">");
             xml.append("  <url>http://www.unit-test.com</url>");
             xml.append(extraXml);
             xml.append("</task>");
@@ -219,4 +223,57 @@ public class HttpRequestTaskTest extends TestCase {
             assertEquals("123123123123123", results.get(new IntermediateValueName("var")));
         }
     }
-}
\ No newline at end of file
+
+    public void testParseResultsMultipleValues() throws Exception {
+        var outputs = "<output-intermediate-value name='a' jsonpath='$.a'/>" +
+            "<output-intermediate-value name='b' jsonpath='$.b[1].c'/>";
+        var json = "{ \"a\": \"x\", \"b\": [ {}, { \"c\": 12.50 } ] }";
+        for (var attributes : new String[] { "", "stream-response='true'" }) {
+            var results = new HashMap<IntermediateValueName, String>();
+            newTask(attributes, outputs).parseResults(results, new Connection("application/json", json));
+            assertEquals("x", results.get(new IntermediateValueName("a")));
+            assertTrue(results.get(new IntermediateValueName("b")).startsWith("12.5"));
+        }
+    }
+
+    public void testParseResultsStreaming() throws Exception {
+        // Only simple paths are possible
+        try { newTask("stream-response='true'", output("xpath='//foo'")); fail(); }
+        catch (ConfigurationException ignored) { }
+        try { newTask("stream-response='true'", output("jsonpath='$..foo'")); fail(); }
+        catch (ConfigurationException ignored) { }
+
+        // XML
+        {
+            var outputs = "<output-intermediate-value name='element' xpath='/a/b'/>" +
+                "<output-intermediate-value name='text' xpath='/a/b/text()'/>" +
+                "<output-intermediate-value name='attr' xpath='/a/b/@x'/>" +
+                "<output-intermediate-value name='missing' xpath='/a/missing'/>";
+            var xml = "<a><b x='attr'>first<c>child</c></b><b>second</b></a>";
+            var results = new HashMap<IntermediateValueName, String>();
+            newTask("stream-response='true'", outputs).parseResults(results, new Connection("text/xml", xml));
+            assertEquals("firstchild", results.get(new IntermediateValueName("element")));
+            assertEquals("first", results.get(new IntermediateValueName("text")));
+            assertEquals("attr", results.get(new IntermediateValueName("attr")));
+            assertEquals("", results.get(new IntermediateValueName("missing")));
+        }
+
+        // JSON not found, or not a value
+        try {
+            newTask("stream-response='true'", output("jsonpath='$.notfound'")).parseResults(Map.of(),
+                new Connection("application/json", "{ \"text\": \"value\" }"));
+            fail();
+        }
+        catch (RuntimeException e) {
+            assertTrue(e.getCause().getMessage().contains("JSONPath not found"));
+        }
+        try {
+            newTask("stream-response='true'", output("jsonpath='$.text'")).parseResults(Map.of(),
+                new Connection("application/json", "{ \"text\": [123] }"));
+            fail();
+        }
+        catch (RuntimeException e) {
+            assertTrue(e.getCause().getMessage().contains("array"));
+        }
+    }
+}